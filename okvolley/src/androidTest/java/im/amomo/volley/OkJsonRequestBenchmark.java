@@ -0,0 +1,176 @@
+package im.amomo.volley;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import android.os.Debug;
+import android.util.JsonReader;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares {@link OkJsonRequest} with the String and {@link JSONObject} parse of the sample
+ * BaseRequest on a 1 MB payload. Runs on a device, results are logged under "OkVolley".
+ */
+public class OkJsonRequestBenchmark extends TestCase {
+
+    private static final String TAG = "OkVolley";
+
+    private static final int PAYLOAD_BYTES = 1024 * 1024;
+
+    private static final int WARMUP = 3;
+
+    private static final int ITERATIONS = 10;
+
+    private NetworkResponse mResponse;
+
+    @Override
+    protected void setUp() throws Exception {
+        StringBuilder json = new StringBuilder(PAYLOAD_BYTES + 256);
+        json.append("{\"items\":[");
+        for (int i = 0; json.length() < PAYLOAD_BYTES; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(i)
+                    .append(",\"name\":\"item ").append(i)
+                    .append("\",\"score\":").append(i * 0.5)
+                    .append(",\"tags\":[\"a\",\"b\"]}");
+        }
+        json.append("]}");
+        mResponse = new NetworkResponse(json.toString().getBytes(OkRequest.CHARSET_UTF8),
+                Collections.singletonMap(OkRequest.HEADER_CONTENT_TYPE, "application/json; charset=utf-8"));
+    }
+
+    public void testStreamingAllocatesLessThanDom() {
+        OkJsonRequest<List<Item>> streaming = new OkJsonRequest<List<Item>>(Request.Method.GET, "http://localhost/",
+                new ItemsAdapter(), null, null);
+        DomRequest dom = new DomRequest();
+
+        Result streamingResult = measure(streaming);
+        Result domResult = measure(dom);
+        Log.i(TAG, "OkJsonRequest: " + streamingResult);
+        Log.i(TAG, "String + JSONObject: " + domResult);
+
+        assertTrue("streaming allocated " + streamingResult.mAllocatedBytes + " bytes, DOM "
+                + domResult.mAllocatedBytes, streamingResult.mAllocatedBytes < domResult.mAllocatedBytes);
+    }
+
+    private Result measure(OkRequest<?> request) {
+        for (int i = 0; i < WARMUP; i++) {
+            assertTrue(request.parseNetworkResponse(mResponse).isSuccess());
+        }
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue(request.parseNetworkResponse(mResponse).isSuccess());
+        }
+        long elapsedNs = System.nanoTime() - start;
+        long allocated = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        return new Result(elapsedNs / ITERATIONS / 1000000, allocated / ITERATIONS);
+    }
+
+    private static class Result {
+        final long mMillis;
+        final long mAllocatedBytes;
+
+        Result(long millis, long allocatedBytes) {
+            mMillis = millis;
+            mAllocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return mMillis + "ms, " + mAllocatedBytes + " bytes allocated per parse";
+        }
+    }
+
+    private static class Item {
+        long mId;
+        String mName;
+        double mScore;
+        List<String> mTags = new ArrayList<String>(2);
+    }
+
+    private static class ItemsAdapter implements OkJsonRequest.TypeAdapter<List<Item>> {
+        @Override
+        public List<Item> read(JsonReader reader) throws IOException {
+            List<Item> items = new ArrayList<Item>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"items".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    items.add(readItem(reader));
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return items;
+        }
+
+        private static Item readItem(JsonReader reader) throws IOException {
+            Item item = new Item();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("id".equals(name)) {
+                    item.mId = reader.nextLong();
+                } else if ("name".equals(name)) {
+                    item.mName = reader.nextString();
+                } else if ("score".equals(name)) {
+                    item.mScore = reader.nextDouble();
+                } else if ("tags".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        item.mTags.add(reader.nextString());
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return item;
+        }
+    }
+
+    /**
+     * The parse of the sample BaseRequest
+     */
+    private static class DomRequest extends OkRequest<JSONObject> {
+        DomRequest() {
+            super(Request.Method.GET, "http://localhost/", null);
+        }
+
+        @Override
+        protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+            try {
+                String json = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+                return Response.success(new JSONObject(json), HttpHeaderParser.parseCacheHeaders(response));
+            } catch (UnsupportedEncodingException e) {
+                return Response.error(new ParseError(e));
+            } catch (JSONException e) {
+                return Response.error(new ParseError(e));
+            }
+        }
+    }
+}
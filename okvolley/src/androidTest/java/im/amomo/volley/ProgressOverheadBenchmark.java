@@ -0,0 +1,134 @@
+package im.amomo.volley;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import okio.Buffer;
+
+/**
+ * Measures what progress reporting costs, with and without a listener. Runs on a device,
+ * results are logged under "OkVolley".
+ */
+public class ProgressOverheadBenchmark extends TestCase {
+
+    private static final String TAG = "OkVolley";
+
+    private static final int SIZE = 1024 * 1024;
+
+    private static final int WARMUP = 5;
+
+    private static final int ITERATIONS = 20;
+
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private static final ProgressListener IGNORE = new ProgressListener() {
+        @Override
+        public void onProgress(long bytes, long total) {
+        }
+    };
+
+    private final byte[] mBody = new byte[SIZE];
+
+    private MockWebServer mServer;
+
+    private OkNetwork mNetwork;
+
+    @Override
+    protected void setUp() throws Exception {
+        new Random(42).nextBytes(mBody);
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody(new Buffer().write(mBody));
+            }
+        });
+        mServer.start();
+        mNetwork = new OkNetwork(new OkHttpStack());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    public void testRequestBodyWrite() throws IOException {
+        RequestBody plain = RequestBody.create(OCTET_STREAM, mBody);
+        RequestBody counted = new ProgressRequestBody(plain, new ProgressReporter(IGNORE));
+
+        measureWrite(plain);
+        measureWrite(counted);
+        long plainNs = measureWrite(plain);
+        long countedNs = measureWrite(counted);
+        Log.i(TAG, String.format(Locale.US, "request body write of 1 MB: without listener %.3f ms, with listener %.3f ms",
+                plainNs / 1e6, countedNs / 1e6));
+
+        Buffer sink = new Buffer();
+        counted.writeTo(sink);
+        assertTrue(Arrays.equals(mBody, sink.readByteArray()));
+    }
+
+    public void testExchange() throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            exchange(false);
+            exchange(true);
+        }
+        long without = 0;
+        long with = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            without += exchange(false);
+            with += exchange(true);
+        }
+        Log.i(TAG, String.format(Locale.US, "1 MB up and down: without listener %.3f ms, with listeners %.3f ms",
+                without / 1e6 / ITERATIONS, with / 1e6 / ITERATIONS));
+    }
+
+    private long measureWrite(RequestBody body) throws IOException {
+        Buffer sink = new Buffer();
+        for (int i = 0; i < WARMUP; i++) {
+            body.writeTo(sink);
+            sink.clear();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            body.writeTo(sink);
+            sink.clear();
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private long exchange(boolean listeners) throws Exception {
+        OkRequest<byte[]> request = new OkRequest<byte[]>(Request.Method.POST, mServer.getUrl("/").toString(), null) {
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                return Response.success(response.data, null);
+            }
+        };
+        request.send(mBody);
+        if (listeners) {
+            request.setUploadProgressListener(IGNORE);
+            request.setDownloadProgressListener(IGNORE);
+        }
+        long start = System.nanoTime();
+        NetworkResponse response = mNetwork.performRequest(request);
+        long elapsed = System.nanoTime() - start;
+        assertTrue(Arrays.equals(mBody, response.data));
+        return elapsed;
+    }
+}
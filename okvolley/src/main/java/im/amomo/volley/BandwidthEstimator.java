@@ -0,0 +1,122 @@
+package im.amomo.volley;
+
+import java.util.Locale;
+
+/**
+ * Estimates round trip time and throughput from recent requests of an {@link OkNetwork} and
+ * derives timeouts from them, see {@link OkRequest#adaptiveTimeouts(long)}.
+ * <p/>
+ * Both values are exponentially weighted moving averages. The round trip time is the time
+ * until the response headers arrived, throughput is measured on response bodies big enough to
+ * tell. Timeouts are a multiple of the time a request is expected to take, kept between a
+ * floor and a ceiling, and grow with every retry.
+ */
+public class BandwidthEstimator {
+
+    private static final double ALPHA = 0.2;
+
+    private static final int MIN_RTT_SAMPLES = 3;
+
+    private static final long MIN_TRANSFER_BYTES = 16 * 1024;
+
+    /**
+     * Assumed until a body big enough was measured, about a slow 3G link
+     */
+    private static final double DEFAULT_BYTES_PER_MS = 32;
+
+    private static final double SAFETY_FACTOR = 3;
+
+    private static final int DEFAULT_FLOOR_MS = 2000;
+
+    private static final int DEFAULT_CEILING_MS = 60000;
+
+    private double mRttMs;
+
+    private double mBytesPerMs = DEFAULT_BYTES_PER_MS;
+
+    private int mRttSamples;
+
+    private int mTransferSamples;
+
+    private int mFloorMs = DEFAULT_FLOOR_MS;
+
+    private int mCeilingMs = DEFAULT_CEILING_MS;
+
+    /**
+     * set the bounds of derived timeouts
+     *
+     * @param floorMs   min timeout in ms
+     * @param ceilingMs max timeout in ms
+     * @return this estimator
+     */
+    public synchronized BandwidthEstimator setTimeoutBounds(int floorMs, int ceilingMs) {
+        if (floorMs <= 0 || ceilingMs < floorMs) {
+            throw new IllegalArgumentException("Invalid timeout bounds " + floorMs + ".." + ceilingMs);
+        }
+        mFloorMs = floorMs;
+        mCeilingMs = ceilingMs;
+        return this;
+    }
+
+    synchronized void addRtt(long rttMs) {
+        mRttMs = mRttSamples == 0 ? rttMs : mRttMs + ALPHA * (rttMs - mRttMs);
+        mRttSamples++;
+    }
+
+    synchronized void addTransfer(long bytes, long durationMs) {
+        if (bytes < MIN_TRANSFER_BYTES) {
+            return;
+        }
+        double bytesPerMs = (double) bytes / Math.max(1, durationMs);
+        mBytesPerMs = mTransferSamples == 0 ? bytesPerMs : mBytesPerMs + ALPHA * (bytesPerMs - mBytesPerMs);
+        mTransferSamples++;
+    }
+
+    /**
+     * Check if enough requests were observed to derive timeouts
+     *
+     * @return true if timeouts can be derived
+     */
+    public synchronized boolean hasEstimate() {
+        return mRttSamples >= MIN_RTT_SAMPLES;
+    }
+
+    public synchronized long getRttMs() {
+        return (long) mRttMs;
+    }
+
+    /**
+     * get estimated throughput
+     *
+     * @return bytes per second
+     */
+    public synchronized long getThroughput() {
+        return (long) (mBytesPerMs * 1000);
+    }
+
+    /**
+     * Derive the timeouts of the next attempt of a request, nothing is set while there is no
+     * estimate yet and the request keeps its fixed timeouts.
+     */
+    synchronized void applyTimeouts(OkRequest<?> request, int attempt) {
+        if (!hasEstimate()) {
+            request.setAdaptiveTimeouts(-1, -1, -1);
+            return;
+        }
+        int scale = attempt + 1;
+        int connect = bound(SAFETY_FACTOR * mRttMs * scale);
+        int write = bound(SAFETY_FACTOR * (mRttMs + request.getBodyLength() / mBytesPerMs) * scale);
+        int read = bound(SAFETY_FACTOR * (mRttMs + request.getExpectedResponseBytes() / mBytesPerMs) * scale);
+        request.setAdaptiveTimeouts(connect, read, write);
+    }
+
+    private int bound(double timeoutMs) {
+        return (int) Math.max(mFloorMs, Math.min(mCeilingMs, timeoutMs));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "rtt=%dms (%d samples), throughput=%dB/s (%d samples)",
+                getRttMs(), mRttSamples, getThroughput(), mTransferSamples);
+    }
+}
@@ -0,0 +1,209 @@
+package im.amomo.volley;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link Executor} for {@link com.android.volley.ExecutorDelivery} which coalesces delivery
+ * runnables into batches, so a burst of responses costs one handler message per batch instead
+ * of one message per response.
+ * <p/>
+ * The first runnable of a batch schedules a flush after at most {@code maxLatencyMs}; every
+ * runnable arriving in the meantime joins the same batch. A flush runs at most
+ * {@code maxBatchSize} runnables and reposts itself for the rest, so a single batch does not
+ * hold the looper for too long.
+ */
+public class BatchingDeliveryExecutor implements Executor {
+
+    /**
+     * Default max latency, about one frame
+     */
+    public static final long DEFAULT_MAX_LATENCY_MS = 16;
+
+    /**
+     * Default max number of deliveries per handler message
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+    private final Handler mHandler;
+
+    private final long mMaxLatencyMs;
+
+    private final int mMaxBatchSize;
+
+    private final Object mLock = new Object();
+
+    private ArrayList<Runnable> mPending = new ArrayList<Runnable>();
+
+    private ArrayList<Runnable> mRunning = new ArrayList<Runnable>();
+
+    private long mFirstPendingTime;
+
+    private boolean mScheduled;
+
+    private long mBatchCount;
+
+    private long mDeliveredCount;
+
+    private int mLargestBatch;
+
+    private long mTotalLagMs;
+
+    private long mMaxLagMs;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Batches deliveries on the main thread with the default latency and batch size
+     */
+    public BatchingDeliveryExecutor() {
+        this(new Handler(Looper.getMainLooper()), DEFAULT_MAX_LATENCY_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param maxLatencyMs max time a delivery waits for its batch
+     */
+    public BatchingDeliveryExecutor(long maxLatencyMs) {
+        this(new Handler(Looper.getMainLooper()), maxLatencyMs, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param handler      handler of the delivery thread
+     * @param maxLatencyMs max time a delivery waits for its batch
+     * @param maxBatchSize max number of deliveries run by one handler message
+     */
+    public BatchingDeliveryExecutor(Handler handler, long maxLatencyMs, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        mHandler = handler;
+        mMaxLatencyMs = Math.max(0, maxLatencyMs);
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                mFirstPendingTime = SystemClock.elapsedRealtime();
+            }
+            mPending.add(command);
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlush, mMaxLatencyMs);
+            }
+        }
+    }
+
+    private void flush() {
+        ArrayList<Runnable> batch;
+        long lag;
+        synchronized (mLock) {
+            lag = SystemClock.elapsedRealtime() - mFirstPendingTime;
+            if (mPending.size() <= mMaxBatchSize) {
+                // swap buffers, the drained one is reused for the next batch
+                batch = mPending;
+                mPending = mRunning;
+                mScheduled = false;
+            } else {
+                batch = mRunning;
+                batch.addAll(mPending.subList(0, mMaxBatchSize));
+                mPending.subList(0, mMaxBatchSize).clear();
+                // leftovers are already late, deliver them with the next message
+                mHandler.post(mFlush);
+            }
+            mRunning = batch;
+        }
+
+        int size = batch.size();
+        try {
+            for (int i = 0; i < size; i++) {
+                batch.get(i).run();
+            }
+        } finally {
+            batch.clear();
+            synchronized (mLock) {
+                mBatchCount++;
+                mDeliveredCount += size;
+                mLargestBatch = Math.max(mLargestBatch, size);
+                mTotalLagMs += lag;
+                mMaxLagMs = Math.max(mMaxLagMs, lag);
+            }
+        }
+    }
+
+    /**
+     * get number of handler messages used for delivery
+     *
+     * @return batch count
+     */
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    /**
+     * get number of delivered runnables
+     *
+     * @return delivery count
+     */
+    public long getDeliveredCount() {
+        synchronized (mLock) {
+            return mDeliveredCount;
+        }
+    }
+
+    /**
+     * get average batch size
+     *
+     * @return deliveries per handler message
+     */
+    public float getAverageBatchSize() {
+        synchronized (mLock) {
+            return mBatchCount == 0 ? 0 : (float) mDeliveredCount / mBatchCount;
+        }
+    }
+
+    /**
+     * get largest batch delivered so far
+     *
+     * @return largest batch size
+     */
+    public int getLargestBatchSize() {
+        synchronized (mLock) {
+            return mLargestBatch;
+        }
+    }
+
+    /**
+     * get average time between the first delivery of a batch being posted and the batch running
+     *
+     * @return average delivery lag in ms
+     */
+    public long getAverageLagMs() {
+        synchronized (mLock) {
+            return mBatchCount == 0 ? 0 : mTotalLagMs / mBatchCount;
+        }
+    }
+
+    /**
+     * get max time between the first delivery of a batch being posted and the batch running
+     *
+     * @return max delivery lag in ms
+     */
+    public long getMaxLagMs() {
+        synchronized (mLock) {
+            return mMaxLagMs;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package im.amomo.volley;
+
+import android.os.SystemClock;
+
+/**
+ * A global budget of bytes which may be buffered in memory at the same time.
+ * <p/>
+ * {@link OkNetwork} reserves twice the Content-Length of a response body before reading it,
+ * for the buffered body and its final copy, and releases the reservation once the body is
+ * buffered. When the length is unknown the reservation grows as the body streams in; if it
+ * can not grow at once, it is given back and the whole amount is waited for, so requests
+ * never wait while holding part of the budget. A reservation which does not fit waits up to
+ * {@code maxWaitMs} for other requests to release theirs; a reservation bigger than the
+ * whole budget fails at once.
+ */
+public class ByteBudget {
+
+    private final long mCapacity;
+
+    private final long mMaxWaitMs;
+
+    private long mUsed;
+
+    /**
+     * @param capacity  max number of bytes buffered at the same time
+     * @param maxWaitMs max time to wait for capacity, 0 to fail fast
+     */
+    public ByteBudget(long capacity, long maxWaitMs) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mMaxWaitMs = Math.max(0, maxWaitMs);
+    }
+
+    /**
+     * Reserve bytes, waiting for capacity if needed
+     *
+     * @param bytes number of bytes to reserve
+     * @return true if reserved, false if the budget stayed exhausted for max wait time
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(long bytes) throws InterruptedException {
+        if (bytes > mCapacity) {
+            return false;
+        }
+        long deadline = SystemClock.elapsedRealtime() + mMaxWaitMs;
+        while (mUsed + bytes > mCapacity) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        mUsed += bytes;
+        return true;
+    }
+
+    /**
+     * Reserve bytes only if they fit right now
+     *
+     * @param bytes number of bytes to reserve
+     * @return true if reserved
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (mUsed + bytes > mCapacity) {
+            return false;
+        }
+        mUsed += bytes;
+        return true;
+    }
+
+    /**
+     * Release previously reserved bytes
+     *
+     * @param bytes number of bytes to release
+     */
+    public synchronized void release(long bytes) {
+        mUsed = Math.max(0, mUsed - bytes);
+        notifyAll();
+    }
+
+    /**
+     * get budget capacity
+     *
+     * @return max number of bytes buffered at the same time
+     */
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * get reserved bytes
+     *
+     * @return number of bytes currently reserved
+     */
+    public synchronized long getUsed() {
+        return mUsed;
+    }
+
+    /**
+     * get max wait time
+     *
+     * @return max time in ms a reservation waits for capacity
+     */
+    public long getMaxWaitMs() {
+        return mMaxWaitMs;
+    }
+}
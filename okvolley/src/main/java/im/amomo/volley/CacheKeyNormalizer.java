@@ -0,0 +1,277 @@
+package im.amomo.volley;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Builds cache keys which do not depend on how a request was written down.
+ * <p/>
+ * The scheme and host are lower-cased, the fragment is dropped, query parameters are sorted
+ * by name and tracking parameters (utm_*, gclid, fbclid by default) are left out. The values
+ * of the request headers which select a variant of the response (Accept-Language and
+ * Authorization by default) are appended, credentials only as a digest, so different variants
+ * do not overwrite each other in the cache.
+ * <p/>
+ * Not used unless set on a request or with {@link OkRequestQueue#setCacheKeyNormalizer}.
+ */
+public class CacheKeyNormalizer {
+
+    private static final String[] DEFAULT_DROPPED_PARAMS = {"gclid", "fbclid"};
+
+    private static final String[] DEFAULT_DROPPED_PARAM_PREFIXES = {"utm_"};
+
+    private static final String[] DEFAULT_VARY_HEADERS = {"Accept-Language", OkRequest.HEADER_AUTHORIZATION};
+
+    private static final String[] DEFAULT_DIGEST_HEADERS = {OkRequest.HEADER_AUTHORIZATION, "Cookie"};
+
+    private final Set<String> mDroppedParams = new HashSet<String>();
+
+    private final List<String> mDroppedParamPrefixes = new CopyOnWriteArrayList<String>();
+
+    private final List<String> mVaryHeaders = new CopyOnWriteArrayList<String>();
+
+    private final Set<String> mDigestHeaders = new HashSet<String>();
+
+    public CacheKeyNormalizer() {
+        mDroppedParams.addAll(Arrays.asList(DEFAULT_DROPPED_PARAMS));
+        mDroppedParamPrefixes.addAll(Arrays.asList(DEFAULT_DROPPED_PARAM_PREFIXES));
+        for (String header : DEFAULT_VARY_HEADERS) {
+            mVaryHeaders.add(header);
+        }
+        for (String header : DEFAULT_DIGEST_HEADERS) {
+            mDigestHeaders.add(header.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * Leave a query parameter out of the key
+     *
+     * @param name parameter name
+     * @return this normalizer
+     */
+    public synchronized CacheKeyNormalizer dropParam(String name) {
+        mDroppedParams.add(name);
+        return this;
+    }
+
+    /**
+     * Leave all query parameters starting with prefix out of the key
+     *
+     * @param prefix parameter name prefix
+     * @return this normalizer
+     */
+    public CacheKeyNormalizer dropParamPrefix(String prefix) {
+        mDroppedParamPrefixes.add(prefix);
+        return this;
+    }
+
+    /**
+     * Add the value of a request header to the key
+     *
+     * @param name header name
+     * @return this normalizer
+     */
+    public CacheKeyNormalizer varyHeader(String name) {
+        if (!mVaryHeaders.contains(name)) {
+            mVaryHeaders.add(name);
+        }
+        return this;
+    }
+
+    /**
+     * Stop adding the value of a request header to the key
+     *
+     * @param name header name
+     * @return this normalizer
+     */
+    public CacheKeyNormalizer removeVaryHeader(String name) {
+        mVaryHeaders.remove(name);
+        return this;
+    }
+
+    /**
+     * get the request headers whose values are added to the key
+     *
+     * @return header names
+     */
+    public List<String> getVaryHeaders() {
+        return Collections.unmodifiableList(mVaryHeaders);
+    }
+
+    /**
+     * Build the cache key of a request
+     *
+     * @param url     request url
+     * @param headers request headers, can be null
+     * @return normalized cache key
+     */
+    public String normalize(String url, Map<String, String> headers) {
+        StringBuilder key = new StringBuilder(url.length() + 16);
+
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+        int query = url.indexOf('?');
+        String base = query >= 0 ? url.substring(0, query) : url;
+        appendBase(key, base);
+
+        if (query >= 0 && query < url.length() - 1) {
+            String[] pairs = url.substring(query + 1).split("&");
+            List<String> kept = new ArrayList<String>(pairs.length);
+            for (String pair : pairs) {
+                if (pair.length() > 0 && !isDropped(pair)) {
+                    kept.add(pair);
+                }
+            }
+            if (!kept.isEmpty()) {
+                // the sort is stable, repeated parameters keep their order
+                Collections.sort(kept, BY_NAME);
+                key.append('?');
+                for (int i = 0; i < kept.size(); i++) {
+                    if (i > 0) {
+                        key.append('&');
+                    }
+                    key.append(kept.get(i));
+                }
+            }
+        }
+
+        if (headers != null && !headers.isEmpty()) {
+            for (String name : mVaryHeaders) {
+                String value = findHeader(headers, name);
+                if (value != null) {
+                    key.append(" |").append(name.toLowerCase(Locale.US)).append('=');
+                    key.append(mDigestHeaders.contains(name.toLowerCase(Locale.US)) ? digest(value) : value);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Replay a recorded trace of request urls through an unbounded, never expiring cache, keyed
+     * once by the raw url and once by the normalized key
+     *
+     * @param urls recorded request urls, in request order
+     * @return hit rates of both keys
+     */
+    public TraceStats replay(Iterable<String> urls) {
+        Set<String> rawKeys = new HashSet<String>();
+        Set<String> normalizedKeys = new HashSet<String>();
+        TraceStats stats = new TraceStats();
+        for (String url : urls) {
+            stats.requests++;
+            if (!rawKeys.add(url)) {
+                stats.rawHits++;
+            }
+            if (!normalizedKeys.add(normalize(url, null))) {
+                stats.normalizedHits++;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Result of {@link #replay(Iterable)}
+     */
+    public static class TraceStats {
+        public int requests;
+        public int rawHits;
+        public int normalizedHits;
+
+        public float getRawHitRate() {
+            return requests == 0 ? 0 : (float) rawHits / requests;
+        }
+
+        public float getNormalizedHitRate() {
+            return requests == 0 ? 0 : (float) normalizedHits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "requests=%d, raw hit rate=%.3f, normalized hit rate=%.3f",
+                    requests, getRawHitRate(), getNormalizedHitRate());
+        }
+    }
+
+    private static void appendBase(StringBuilder key, String base) {
+        int scheme = base.indexOf("://");
+        if (scheme < 0) {
+            key.append(base);
+            return;
+        }
+        int path = base.indexOf('/', scheme + 3);
+        String authority = path >= 0 ? base.substring(0, path) : base;
+        key.append(authority.toLowerCase(Locale.US));
+        key.append(path >= 0 ? base.substring(path) : "/");
+    }
+
+    private synchronized boolean isDropped(String pair) {
+        String name = paramName(pair);
+        if (mDroppedParams.contains(name)) {
+            return true;
+        }
+        for (String prefix : mDroppedParamPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String paramName(String pair) {
+        int equals = pair.indexOf('=');
+        return equals >= 0 ? pair.substring(0, equals) : pair;
+    }
+
+    /**
+     * Orders query parameters by name only
+     */
+    private static final Comparator<String> BY_NAME = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return paramName(lhs).compareTo(paramName(rhs));
+        }
+    };
+
+    private static String findHeader(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(value.getBytes(OkRequest.CHARSET_UTF8));
+            StringBuilder hex = new StringBuilder(16);
+            // 64 bits are plenty to tell credentials apart
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(value.hashCode());
+        } catch (UnsupportedEncodingException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+}
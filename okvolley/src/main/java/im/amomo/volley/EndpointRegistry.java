@@ -0,0 +1,215 @@
+package im.amomo.volley;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Groups request metrics by endpoint template, see {@link EndpointStats}.
+ * <p/>
+ * The template of a request is its method, host and path with id-like segments (numbers,
+ * uuids and long hex strings) replaced by {id}, for example "GET api.example.com/users/{id}".
+ * Query strings are ignored. Templates beyond the configured maximum share one "other"
+ * bucket so a badly shaped url can not grow the registry without bound.
+ * <p/>
+ * Stats are looked up by the plain url first, so a url seen before is recorded without
+ * building its template. The url lookup is dropped once it holds too many urls.
+ */
+public class EndpointRegistry {
+
+    private static final int DEFAULT_MAX_ENDPOINTS = 256;
+
+    private static final String OTHER = "other";
+
+    private static final String ID = "{id}";
+
+    private static final int MAX_CACHED_URLS = 1024;
+
+    private final ConcurrentHashMap<String, EndpointStats> mEndpoints = new ConcurrentHashMap<String, EndpointStats>();
+
+    /**
+     * Stats by url, one map per method from {@link com.android.volley.Request.Method#DEPRECATED_GET_OR_POST}
+     */
+    private final List<ConcurrentHashMap<String, EndpointStats>> mUrls;
+
+    private final int mMaxEndpoints;
+
+    public EndpointRegistry() {
+        this(DEFAULT_MAX_ENDPOINTS);
+    }
+
+    /**
+     * @param maxEndpoints max number of templates tracked separately
+     */
+    public EndpointRegistry(int maxEndpoints) {
+        mMaxEndpoints = maxEndpoints;
+        mUrls = new ArrayList<ConcurrentHashMap<String, EndpointStats>>(OkRequest.Method.PATCH + 2);
+        for (int method = OkRequest.Method.DEPRECATED_GET_OR_POST; method <= OkRequest.Method.PATCH; method++) {
+            mUrls.add(new ConcurrentHashMap<String, EndpointStats>());
+        }
+    }
+
+    /**
+     * get the stats a request is recorded to, created on first use
+     *
+     * @param method request method, see {@link com.android.volley.Request.Method}
+     * @param url    request url
+     * @return endpoint stats
+     */
+    public EndpointStats get(int method, String url) {
+        int index = method - OkRequest.Method.DEPRECATED_GET_OR_POST;
+        ConcurrentHashMap<String, EndpointStats> urls = index >= 0 && index < mUrls.size() ? mUrls.get(index) : null;
+        EndpointStats stats = urls != null ? urls.get(url) : null;
+        if (stats != null) {
+            return stats;
+        }
+        stats = lookup(method, url);
+        if (urls != null) {
+            if (urls.size() >= MAX_CACHED_URLS) {
+                // urls with ids are endless, start over
+                urls.clear();
+            }
+            urls.put(url, stats);
+        }
+        return stats;
+    }
+
+    private EndpointStats lookup(int method, String url) {
+        String template = template(method, url);
+        EndpointStats stats = mEndpoints.get(template);
+        if (stats != null) {
+            return stats;
+        }
+        if (mEndpoints.size() >= mMaxEndpoints) {
+            template = OTHER;
+            stats = mEndpoints.get(OTHER);
+            if (stats != null) {
+                return stats;
+            }
+        }
+        stats = new EndpointStats(template);
+        EndpointStats existing = mEndpoints.putIfAbsent(template, stats);
+        return existing != null ? existing : stats;
+    }
+
+    /**
+     * Copy the counters of all endpoints
+     *
+     * @return snapshots, one per template
+     */
+    public List<EndpointStats.Snapshot> snapshot() {
+        List<EndpointStats.Snapshot> snapshots = new ArrayList<EndpointStats.Snapshot>(mEndpoints.size());
+        for (EndpointStats stats : mEndpoints.values()) {
+            snapshots.add(stats.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Export the counters of all endpoints, one line per template
+     *
+     * @return readable report
+     */
+    public String export() {
+        StringBuilder report = new StringBuilder();
+        for (EndpointStats.Snapshot snapshot : snapshot()) {
+            report.append(snapshot).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Reset the counters of all endpoints
+     */
+    public void reset() {
+        for (EndpointStats stats : mEndpoints.values()) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Build the endpoint template of a request
+     *
+     * @param method request method
+     * @param url    request url
+     * @return template
+     */
+    public static String template(int method, String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query >= 0) {
+            end = query;
+        }
+        int fragment = url.indexOf('#');
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        int start = url.indexOf("://");
+        start = start >= 0 ? start + 3 : 0;
+
+        StringBuilder template = new StringBuilder(end - start + 8);
+        template.append(methodName(method)).append(' ');
+        int segment = start;
+        while (segment <= end) {
+            int slash = url.indexOf('/', segment);
+            if (slash < 0 || slash > end) {
+                slash = end;
+            }
+            if (segment > start) {
+                template.append('/');
+            }
+            if (segment > start && isId(url, segment, slash)) {
+                template.append(ID);
+            } else {
+                template.append(url, segment, slash);
+            }
+            segment = slash + 1;
+        }
+        return template.toString();
+    }
+
+    private static boolean isId(String url, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+        boolean digits = true;
+        boolean hex = true;
+        int digitCount = 0;
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digitCount++;
+                continue;
+            }
+            digits = false;
+            if (!(c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == '-')) {
+                hex = false;
+                break;
+            }
+        }
+        // plain numbers, and uuids or hashes which contain at least one digit
+        return digits || hex && length >= 16 && digitCount > 0;
+    }
+
+    private static String methodName(int method) {
+        switch (method) {
+            case OkRequest.Method.POST:
+                return "POST";
+            case OkRequest.Method.PUT:
+                return "PUT";
+            case OkRequest.Method.DELETE:
+                return "DELETE";
+            case OkRequest.Method.HEAD:
+                return "HEAD";
+            case OkRequest.Method.OPTIONS:
+                return "OPTIONS";
+            case OkRequest.Method.TRACE:
+                return "TRACE";
+            case OkRequest.Method.PATCH:
+                return "PATCH";
+            default:
+                return "GET";
+        }
+    }
+}
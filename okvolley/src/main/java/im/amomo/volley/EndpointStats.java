@@ -0,0 +1,118 @@
+package im.amomo.volley;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, error and traffic counters of one endpoint template, see {@link EndpointRegistry}.
+ * <p/>
+ * Network latency is the time {@link OkNetwork} spent on a request including retries, total
+ * latency is the time from adding the request to the queue until its first delivery,
+ * including cache hits.
+ */
+public class EndpointStats {
+
+    private final String mTemplate;
+
+    private final LatencyHistogram mNetworkLatency = new LatencyHistogram();
+
+    private final LatencyHistogram mTotalLatency = new LatencyHistogram();
+
+    private final AtomicLong mRequests = new AtomicLong();
+
+    private final AtomicLong mErrors = new AtomicLong();
+
+    private final AtomicLong mBytes = new AtomicLong();
+
+    EndpointStats(String template) {
+        mTemplate = template;
+    }
+
+    public String getTemplate() {
+        return mTemplate;
+    }
+
+    /**
+     * get observed network latency, see {@link LatencyHistogram#getValueAtPercentile(double)}
+     *
+     * @param percentile percentile between 0 and 100
+     * @param minSamples samples needed for a meaningful value
+     * @return latency in milliseconds, -1 if fewer samples were recorded
+     */
+    public long getNetworkLatencyMs(double percentile, long minSamples) {
+        if (mNetworkLatency.getCount() < minSamples) {
+            return -1;
+        }
+        return mNetworkLatency.getValueAtPercentile(percentile);
+    }
+
+    void recordNetwork(long latencyMs, long bytes) {
+        mNetworkLatency.record(latencyMs);
+        if (bytes > 0) {
+            mBytes.addAndGet(bytes);
+        }
+    }
+
+    void recordDelivery(long latencyMs, boolean success) {
+        mTotalLatency.record(latencyMs);
+        mRequests.incrementAndGet();
+        if (!success) {
+            mErrors.incrementAndGet();
+        }
+    }
+
+    void reset() {
+        mNetworkLatency.reset();
+        mTotalLatency.reset();
+        mRequests.set(0);
+        mErrors.set(0);
+        mBytes.set(0);
+    }
+
+    /**
+     * Copy the current counters
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(mTemplate, mRequests.get(), mErrors.get(), mBytes.get(),
+                mNetworkLatency.snapshot(), mTotalLatency.snapshot());
+    }
+
+    /**
+     * Immutable copy of the counters of an endpoint
+     */
+    public static class Snapshot {
+        public final String template;
+        public final long requests;
+        public final long errors;
+        public final long bytes;
+        public final LatencyHistogram.Snapshot networkLatency;
+        public final LatencyHistogram.Snapshot totalLatency;
+
+        Snapshot(String template, long requests, long errors, long bytes,
+                 LatencyHistogram.Snapshot networkLatency, LatencyHistogram.Snapshot totalLatency) {
+            this.template = template;
+            this.requests = requests;
+            this.errors = errors;
+            this.bytes = bytes;
+            this.networkLatency = networkLatency;
+            this.totalLatency = totalLatency;
+        }
+
+        public float getErrorRate() {
+            return requests == 0 ? 0 : (float) errors / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s requests=%d errors=%.2f%% bytes=%d network p50/p95/p99=%d/%d/%dms total p50/p95/p99=%d/%d/%dms",
+                    template, requests, getErrorRate() * 100, bytes,
+                    networkLatency.getValueAtPercentile(50), networkLatency.getValueAtPercentile(95),
+                    networkLatency.getValueAtPercentile(99),
+                    totalLatency.getValueAtPercentile(50), totalLatency.getValueAtPercentile(95),
+                    totalLatency.getValueAtPercentile(99));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package im.amomo.volley;
+
+import java.util.Locale;
+
+/**
+ * Caps the share of requests which are hedged, see {@link OkRequest#hedge(long)}.
+ * <p/>
+ * Every hedgeable request earns a fraction of a token, every hedge spends a whole one, so at
+ * most that fraction of requests is sent twice in the long run. Tokens are capped to limit
+ * bursts when a backend slows down as a whole.
+ */
+public class HedgeBudget {
+
+    private static final float DEFAULT_RATIO = 0.1f;
+
+    private static final int DEFAULT_MAX_TOKENS = 10;
+
+    private final float mRatio;
+
+    private final float mMaxTokens;
+
+    private float mTokens;
+
+    private long mHedgeable;
+
+    private long mHedges;
+
+    private long mWins;
+
+    private long mDenied;
+
+    public HedgeBudget() {
+        this(DEFAULT_RATIO, DEFAULT_MAX_TOKENS);
+    }
+
+    /**
+     * @param ratio     max share of hedgeable requests which are hedged, between 0 and 1
+     * @param maxTokens max hedges in a burst
+     */
+    public HedgeBudget(float ratio, int maxTokens) {
+        mRatio = ratio;
+        mMaxTokens = maxTokens;
+        mTokens = maxTokens;
+    }
+
+    synchronized void onHedgeable() {
+        mHedgeable++;
+        mTokens = Math.min(mMaxTokens, mTokens + mRatio);
+    }
+
+    synchronized boolean tryAcquire() {
+        if (mTokens < 1) {
+            mDenied++;
+            return false;
+        }
+        mTokens -= 1;
+        mHedges++;
+        return true;
+    }
+
+    synchronized void onHedgeWon() {
+        mWins++;
+    }
+
+    public synchronized long getHedgeableCount() {
+        return mHedgeable;
+    }
+
+    public synchronized long getHedgeCount() {
+        return mHedges;
+    }
+
+    public synchronized long getWinCount() {
+        return mWins;
+    }
+
+    public synchronized long getDeniedCount() {
+        return mDenied;
+    }
+
+    /**
+     * get share of hedges which answered before the original call
+     *
+     * @return win rate between 0 and 1
+     */
+    public synchronized float getWinRate() {
+        return mHedges == 0 ? 0 : (float) mWins / mHedges;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "hedgeable=%d, hedges=%d, wins=%d, denied=%d, win rate=%.3f",
+                mHedgeable, mHedges, mWins, mDenied, getWinRate());
+    }
+}
@@ -0,0 +1,138 @@
+package im.amomo.volley;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a call and, if it has not answered after a delay, an identical second one. The first
+ * response wins, the other call is cancelled. A failed call only fails the exchange when no
+ * other call is left running.
+ */
+class HedgedCall {
+
+    private final OkHttpClient mClient;
+
+    private final Request mRequest;
+
+    private final Call[] mCalls = new Call[2];
+
+    private int mStarted;
+
+    private int mFailed;
+
+    private IOException mFailure;
+
+    private Response mWinner;
+
+    private int mWinnerIndex = -1;
+
+    HedgedCall(OkHttpClient client, Request request) {
+        mClient = client;
+        mRequest = request;
+    }
+
+    Response execute(long delayMs, HedgeBudget budget) throws IOException {
+        start(0);
+        try {
+            synchronized (this) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+                long remainingMs;
+                while (mWinner == null && mFailed == 0
+                        && (remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                    wait(remainingMs);
+                }
+                // decided under the lock, so no hedge starts after the first call answered
+                if (mWinner == null && mFailed == 0 && budget.tryAcquire()) {
+                    start(1);
+                }
+                while (mWinner == null && mFailed < mStarted) {
+                    wait();
+                }
+                if (mWinner == null) {
+                    throw mFailure;
+                }
+                if (mWinnerIndex == 1) {
+                    budget.onHedgeWon();
+                }
+                return mWinner;
+            }
+        } catch (InterruptedException e) {
+            cancelAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Hedged call interrupted");
+        }
+    }
+
+    private synchronized void start(int index) {
+        Call call = mClient.newCall(mRequest);
+        mCalls[index] = call;
+        mStarted++;
+        call.enqueue(new Attempt(index));
+    }
+
+    private synchronized void cancelAll() {
+        for (Call call : mCalls) {
+            if (call != null) {
+                call.cancel();
+            }
+        }
+    }
+
+    private void onResponse(int index, Response response) {
+        Call loser = null;
+        synchronized (this) {
+            if (mWinner == null) {
+                mWinner = response;
+                mWinnerIndex = index;
+                loser = mCalls[1 - index];
+                response = null;
+                notifyAll();
+            }
+        }
+        if (loser != null) {
+            loser.cancel();
+        }
+        if (response != null && response.body() != null) {
+            // the other call won, drop this answer
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private synchronized void onFailure(IOException e) {
+        mFailed++;
+        if (mFailure == null) {
+            mFailure = e;
+        }
+        notifyAll();
+    }
+
+    private class Attempt implements Callback {
+
+        private final int mIndex;
+
+        Attempt(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void onFailure(Request request, IOException e) {
+            HedgedCall.this.onFailure(e);
+        }
+
+        @Override
+        public void onResponse(Response response) throws IOException {
+            HedgedCall.this.onResponse(mIndex, response);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package im.amomo.volley;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Routes requests between hosts serving the same API, see
+ * {@link OkHttpStack#setHostSelector(HostSelector)}.
+ * <p/>
+ * Keeps a moving average of latency and error rate per host and sends each request to the
+ * best one. A host which can not be connected to is taken out for a back-off period which
+ * doubles with every failure, a failed probe starts the next period. Once the period is over
+ * the host is tried right after the best healthy one, and first on every
+ * {@value #EXPLORE_EVERY}th request or when no host is healthy; a response brings it back.
+ * Otherwise every {@value #EXPLORE_EVERY}th request goes to the runner-up, so its latency
+ * does not go stale.
+ */
+public class HostSelector {
+
+    private static final double ALPHA = 0.2;
+
+    private static final double ERROR_PENALTY = 10;
+
+    private static final long MIN_DOWN_MS = 5000;
+
+    private static final long MAX_DOWN_MS = 300000;
+
+    private static final int EXPLORE_EVERY = 50;
+
+    private final Host[] mHosts;
+
+    private long mSelections;
+
+    private long mFailovers;
+
+    /**
+     * @param hosts host names serving the same API, in order of preference until measured
+     */
+    public HostSelector(String... hosts) {
+        if (hosts.length == 0) {
+            throw new IllegalArgumentException("no hosts");
+        }
+        mHosts = new Host[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            mHosts[i] = new Host(hosts[i], i);
+        }
+    }
+
+    /**
+     * get the hosts to try for a request, best first
+     *
+     * @param host host of the request url
+     * @return candidate hosts, null if the host is not one of them
+     */
+    public synchronized List<String> select(String host) {
+        if (find(host) == null) {
+            return null;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        mSelections++;
+        Host probe = null;
+        List<Host> up = new ArrayList<Host>(mHosts.length);
+        List<Host> down = new ArrayList<Host>();
+        for (Host candidate : mHosts) {
+            if (candidate.mFailures == 0) {
+                up.add(candidate);
+            } else if (probe == null && !candidate.mProbing && now >= candidate.mDownUntil) {
+                probe = candidate;
+            } else {
+                down.add(candidate);
+            }
+        }
+        Collections.sort(up, BY_SCORE);
+        Collections.sort(down, new Comparator<Host>() {
+            @Override
+            public int compare(Host lhs, Host rhs) {
+                return lhs.mDownUntil < rhs.mDownUntil ? -1 : (lhs.mDownUntil == rhs.mDownUntil ? 0 : 1);
+            }
+        });
+        boolean explore = mSelections % EXPLORE_EVERY == 0;
+        if (probe != null && (up.isEmpty() || explore)) {
+            // only one request at a time risks its latency on the probe
+            probe.mProbing = true;
+            up.add(0, probe);
+        } else {
+            if (up.size() > 1 && explore) {
+                Collections.swap(up, 0, 1);
+            }
+            if (probe != null) {
+                // a failover target only, the best healthy host is tried first
+                up.add(Math.min(1, up.size()), probe);
+            }
+        }
+
+        List<String> hosts = new ArrayList<String>(mHosts.length);
+        for (Host candidate : up) {
+            hosts.add(candidate.mName);
+        }
+        for (Host candidate : down) {
+            hosts.add(candidate.mName);
+        }
+        return hosts;
+    }
+
+    /**
+     * Record a response from a host
+     *
+     * @param host      host
+     * @param latencyMs time until the response headers arrived
+     * @param error     true for a server error
+     */
+    public synchronized void onResponse(String host, long latencyMs, boolean error) {
+        Host state = find(host);
+        if (state == null) {
+            return;
+        }
+        state.mLatencyMs = state.mLatencyMs < 0 ? latencyMs : state.mLatencyMs + ALPHA * (latencyMs - state.mLatencyMs);
+        state.mErrorRate += ALPHA * ((error ? 1 : 0) - state.mErrorRate);
+        state.mFailures = 0;
+        state.mDownUntil = 0;
+        state.mProbing = false;
+    }
+
+    /**
+     * Record a request to a host which failed without a response
+     *
+     * @param host           host
+     * @param connectFailure true if the host could not be reached, the host is then taken out.
+     *                       A host which is out already starts another back-off period on any
+     *                       failure.
+     */
+    public synchronized void onFailure(String host, boolean connectFailure) {
+        Host state = find(host);
+        if (state == null) {
+            return;
+        }
+        state.mErrorRate += ALPHA * (1 - state.mErrorRate);
+        state.mProbing = false;
+        if (connectFailure || state.mFailures > 0) {
+            long downMs = MIN_DOWN_MS << Math.min(state.mFailures, 16);
+            state.mFailures++;
+            state.mDownUntil = SystemClock.elapsedRealtime() + Math.min(downMs, MAX_DOWN_MS);
+        }
+    }
+
+    synchronized void onFailover() {
+        mFailovers++;
+    }
+
+    /**
+     * Check whether a request failed before anything was sent, so another host can be tried
+     *
+     * @param e         failure
+     * @param connected true if a connection to the host was established
+     * @return true for connect failures, including timeouts before the connection was established
+     */
+    public static boolean isConnectFailure(IOException e, boolean connected) {
+        return e instanceof ConnectException || e instanceof UnknownHostException
+                || e instanceof NoRouteToHostException || e instanceof PortUnreachableException
+                || e instanceof SocketTimeoutException && !connected;
+    }
+
+    /**
+     * get the moving average latency of a host
+     *
+     * @param host host
+     * @return latency in milliseconds, -1 if not measured yet
+     */
+    public synchronized long getLatencyMs(String host) {
+        Host state = find(host);
+        return state == null ? -1 : Math.round(state.mLatencyMs);
+    }
+
+    /**
+     * get the moving average error rate of a host
+     *
+     * @param host host
+     * @return error rate between 0 and 1
+     */
+    public synchronized double getErrorRate(String host) {
+        Host state = find(host);
+        return state == null ? 0 : state.mErrorRate;
+    }
+
+    /**
+     * check whether a host is taken out after connect failures, until it answers a probe
+     *
+     * @param host host
+     * @return true if the host is down
+     */
+    public synchronized boolean isDown(String host) {
+        Host state = find(host);
+        return state != null && state.mFailures > 0;
+    }
+
+    /**
+     * get number of requests which were sent to another host after a connect failure
+     *
+     * @return failover count
+     */
+    public synchronized long getFailoverCount() {
+        return mFailovers;
+    }
+
+    /**
+     * get the hosts this selector routes between
+     *
+     * @return host names, in the order they were passed in
+     */
+    public List<String> getHosts() {
+        List<String> hosts = new ArrayList<String>(mHosts.length);
+        for (Host host : mHosts) {
+            hosts.add(host.mName);
+        }
+        return hosts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("failovers=").append(mFailovers);
+        Host[] hosts = Arrays.copyOf(mHosts, mHosts.length);
+        Arrays.sort(hosts, BY_SCORE);
+        for (Host host : hosts) {
+            builder.append(String.format(Locale.US, ", %s: %dms, errors=%.3f%s",
+                    host.mName, Math.round(host.mLatencyMs), host.mErrorRate, host.mFailures > 0 ? " (down)" : ""));
+        }
+        return builder.toString();
+    }
+
+    private Host find(String host) {
+        for (Host candidate : mHosts) {
+            if (candidate.mName.equalsIgnoreCase(host)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Measured hosts by latency weighted with their error rate, then unmeasured ones in order
+     */
+    private static final Comparator<Host> BY_SCORE = new Comparator<Host>() {
+        @Override
+        public int compare(Host lhs, Host rhs) {
+            boolean lhsMeasured = lhs.mLatencyMs >= 0;
+            boolean rhsMeasured = rhs.mLatencyMs >= 0;
+            if (lhsMeasured != rhsMeasured) {
+                return lhsMeasured ? -1 : 1;
+            }
+            if (lhsMeasured) {
+                int result = Double.compare(lhs.score(), rhs.score());
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return lhs.mIndex - rhs.mIndex;
+        }
+    };
+
+    private static class Host {
+        final String mName;
+        final int mIndex;
+        double mLatencyMs = -1;
+        double mErrorRate;
+        int mFailures;
+        long mDownUntil;
+        boolean mProbing;
+
+        Host(String name, int index) {
+            mName = name;
+            mIndex = index;
+        }
+
+        double score() {
+            return mLatencyMs * (1 + ERROR_PENALTY * mErrorRate);
+        }
+    }
+}
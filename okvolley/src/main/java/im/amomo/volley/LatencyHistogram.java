@@ -0,0 +1,175 @@
+package im.amomo.volley;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets, in the style of HdrHistogram.
+ * <p/>
+ * Values up to 63 ms are counted exactly, larger values in buckets of about 3% width, up to
+ * {@link #MAX_VALUE_MS}. Recording is a couple of atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Largest value told apart, larger values are counted as this one
+     */
+    public static final long MAX_VALUE_MS = (1L << 25) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = index(MAX_VALUE_MS) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong mTotalCount = new AtomicLong();
+
+    private final AtomicLong mTotalValue = new AtomicLong();
+
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a value
+     *
+     * @param valueMs latency in milliseconds, negative values count as 0
+     */
+    public void record(long valueMs) {
+        long value = Math.max(0, Math.min(MAX_VALUE_MS, valueMs));
+        mCounts.incrementAndGet(index(value));
+        mTotalCount.incrementAndGet();
+        mTotalValue.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // retry, another thread raised the max
+        }
+    }
+
+    /**
+     * get number of recorded values
+     *
+     * @return value count
+     */
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * get the value below which the given percentage of values fall, read without copying
+     * the histogram
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency in milliseconds, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long max = mMax.get();
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100d * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(max, highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Remove all values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalValue.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Copy the current counts. Values recorded while copying may or may not be included.
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, mTotalValue.get(), mMax.get());
+    }
+
+    /**
+     * Immutable copy of a histogram
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotalValue;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long totalValue, long max) {
+            mCounts = counts;
+            mCount = count;
+            mTotalValue = totalValue;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxMs() {
+            return mMax;
+        }
+
+        public double getMeanMs() {
+            return mCount == 0 ? 0 : (double) mTotalValue / mCount;
+        }
+
+        /**
+         * get the value below which the given percentage of values fall
+         *
+         * @param percentile percentile between 0 and 100
+         * @return latency in milliseconds, 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100d * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(mMax, highestValue(i));
+                }
+            }
+            return mMax;
+        }
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
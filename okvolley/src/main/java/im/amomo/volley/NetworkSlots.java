@@ -0,0 +1,129 @@
+package im.amomo.volley;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many network dispatcher threads do network I/O at the same time, see
+ * {@link OkRequestQueue#OkRequestQueue(com.android.volley.Cache, OkNetwork, int, int,
+ * com.android.volley.ResponseDelivery)}.
+ * <p/>
+ * A thread holds a slot only while {@link OkNetwork} runs the request and gives it back
+ * before the response is parsed. With more dispatcher threads than slots, a slow parse
+ * keeps its thread busy but not a network slot. Time spent waiting for a slot, doing I/O
+ * and parsing is recorded per stage, to size both pools.
+ * <p/>
+ * No dispatcher thread is reserved for I/O, a thread parses the response it fetched. When
+ * all dispatcher threads are parsing, slots stay free but no request is started until a
+ * parse finishes. With many slow parses, size the parse threads by the parse times in
+ * {@link #getParseTime()}, not by the number of cores.
+ */
+public class NetworkSlots {
+
+    private final int mSlots;
+
+    private final Semaphore mSemaphore;
+
+    private final AtomicInteger mWaiting = new AtomicInteger();
+
+    private final LatencyHistogram mSlotWait = new LatencyHistogram();
+
+    private final LatencyHistogram mIo = new LatencyHistogram();
+
+    private final LatencyHistogram mParse = new LatencyHistogram();
+
+    /**
+     * @param slots number of requests doing network I/O at the same time
+     */
+    public NetworkSlots(int slots) {
+        mSlots = slots;
+        mSemaphore = new Semaphore(slots, true);
+    }
+
+    void acquire() throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        mWaiting.incrementAndGet();
+        try {
+            mSemaphore.acquire();
+        } finally {
+            mWaiting.decrementAndGet();
+        }
+        mSlotWait.record(SystemClock.elapsedRealtime() - start);
+    }
+
+    void release(long ioMs) {
+        mSemaphore.release();
+        mIo.record(ioMs);
+    }
+
+    void recordParse(long parseMs) {
+        mParse.record(parseMs);
+    }
+
+    /**
+     * get number of requests which may do network I/O at the same time
+     *
+     * @return slot count
+     */
+    public int getSlots() {
+        return mSlots;
+    }
+
+    /**
+     * get number of requests doing network I/O right now
+     *
+     * @return busy slot count
+     */
+    public int getBusySlots() {
+        return mSlots - mSemaphore.availablePermits();
+    }
+
+    /**
+     * get number of dispatcher threads waiting for a slot right now
+     *
+     * @return waiting thread count
+     */
+    public int getWaiting() {
+        return mWaiting.get();
+    }
+
+    /**
+     * get time dispatcher threads waited for a slot
+     *
+     * @return histogram in milliseconds
+     */
+    public LatencyHistogram getSlotWait() {
+        return mSlotWait;
+    }
+
+    /**
+     * get time slots were held, from sending the request until the body was read
+     *
+     * @return histogram in milliseconds
+     */
+    public LatencyHistogram getIoTime() {
+        return mIo;
+    }
+
+    /**
+     * get time spent in {@code parseNetworkResponse} of {@link OkRequest}s
+     *
+     * @return histogram in milliseconds
+     */
+    public LatencyHistogram getParseTime() {
+        return mParse;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "slots=%d, busy=%d, waiting=%d, slot wait p50/p99=%d/%dms, io p50/p99=%d/%dms, parse p50/p99=%d/%dms",
+                mSlots, getBusySlots(), getWaiting(),
+                mSlotWait.getValueAtPercentile(50), mSlotWait.getValueAtPercentile(99),
+                mIo.getValueAtPercentile(50), mIo.getValueAtPercentile(99),
+                mParse.getValueAtPercentile(50), mParse.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,435 @@
+package im.amomo.volley;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Uploads a file as a sequence of fixed-size chunk requests instead of one body.
+ * <p/>
+ * Every chunk is a separate request carrying {@code Content-Range: bytes start-end/total} and
+ * the {@value #HEADER_UPLOAD_OFFSET} header. The server can return an
+ * {@value #HEADER_UPLOAD_ID} header which is sent back with the following chunks, and an
+ * {@value #HEADER_UPLOAD_OFFSET} header with the offset it expects next. After each chunk the
+ * offset is stored in the state file, so a failed chunk is retried alone and a new upload with
+ * the same state file after an app restart continues from the last acknowledged chunk.
+ */
+public class OkChunkedUpload {
+
+    /**
+     * Callback interface for upload events, called on the delivery thread
+     */
+    public interface Listener {
+        /**
+         * @param uploaded       bytes acknowledged by the server
+         * @param total          file size
+         * @param bytesPerSecond average throughput of this session
+         */
+        public void onProgress(long uploaded, long total, long bytesPerSecond);
+
+        /**
+         * @param response response to the last chunk
+         */
+        public void onComplete(NetworkResponse response);
+
+        public void onError(VolleyError error);
+    }
+
+    /**
+     * 'Content-Range' header name
+     */
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    /**
+     * 'X-Upload-Offset' header name
+     */
+    public static final String HEADER_UPLOAD_OFFSET = "X-Upload-Offset";
+
+    /**
+     * 'X-Upload-Id' header name
+     */
+    public static final String HEADER_UPLOAD_ID = "X-Upload-Id";
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    public static final int DEFAULT_MAX_CHUNK_RETRIES = 3;
+
+    private static final String STATE_URL = "url";
+    private static final String STATE_FILE = "file";
+    private static final String STATE_LENGTH = "length";
+    private static final String STATE_LAST_MODIFIED = "lastModified";
+    private static final String STATE_OFFSET = "offset";
+    private static final String STATE_UPLOAD_ID = "uploadId";
+
+    private final OkRequestQueue mQueue;
+    private final String mUrl;
+    private final File mFile;
+    private final File mStateFile;
+    private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+    private int mMethod = Request.Method.POST;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mMaxChunkRetries = DEFAULT_MAX_CHUNK_RETRIES;
+    private String mContentType = "application/octet-stream";
+    private Listener mListener;
+
+    private long mLength;
+    private long mOffset;
+    private String mUploadId;
+    private int mChunkRetries;
+    private long mSessionStart;
+    private long mSessionStartOffset;
+    private ChunkRequest mCurrent;
+    private boolean mCanceled;
+
+    /**
+     * @param queue     queue the chunk requests are added to
+     * @param url       upload url
+     * @param file      file to upload
+     * @param stateFile file the upload state is stored in between chunks
+     */
+    public OkChunkedUpload(OkRequestQueue queue, String url, File file, File stateFile) {
+        mQueue = queue;
+        mUrl = url;
+        mFile = file;
+        mStateFile = stateFile;
+    }
+
+    /**
+     * set chunk request method, POST by default
+     *
+     * @param method request method
+     * @return this upload
+     */
+    public OkChunkedUpload method(int method) {
+        mMethod = method;
+        return this;
+    }
+
+    /**
+     * set chunk size
+     *
+     * @param chunkSize max bytes per chunk request
+     * @return this upload
+     */
+    public OkChunkedUpload chunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        mChunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * set how many times a single failed chunk is retried
+     *
+     * @param retries max retries per chunk
+     * @return this upload
+     */
+    public OkChunkedUpload maxChunkRetries(int retries) {
+        mMaxChunkRetries = retries;
+        return this;
+    }
+
+    /**
+     * Set 'Content-Type' of chunk bodies
+     *
+     * @param contentType content type
+     * @return this upload
+     */
+    public OkChunkedUpload contentType(String contentType) {
+        mContentType = contentType;
+        return this;
+    }
+
+    /**
+     * Set header sent with every chunk
+     *
+     * @param name
+     * @param value
+     * @return this upload
+     */
+    public OkChunkedUpload header(String name, String value) {
+        mHeaders.put(name, value);
+        return this;
+    }
+
+    /**
+     * set upload listener
+     *
+     * @param listener listener
+     * @return this upload
+     */
+    public OkChunkedUpload listener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Start or resume the upload. Call on the delivery thread.
+     *
+     * @return this upload
+     */
+    public OkChunkedUpload start() {
+        mCanceled = false;
+        mLength = mFile.length();
+        restoreState();
+        mSessionStart = SystemClock.elapsedRealtime();
+        mSessionStartOffset = mOffset;
+        sendChunk();
+        return this;
+    }
+
+    /**
+     * Cancel the upload, the state is kept so it can be resumed later
+     */
+    public void cancel() {
+        mCanceled = true;
+        if (mCurrent != null) {
+            mCurrent.cancel();
+        }
+    }
+
+    /**
+     * get acknowledged bytes
+     *
+     * @return offset of the next chunk
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    private void sendChunk() {
+        if (mCanceled) {
+            return;
+        }
+        int size = (int) Math.min(mChunkSize, mLength - mOffset);
+        byte[] chunk;
+        try {
+            chunk = readChunk(mOffset, size);
+        } catch (IOException e) {
+            fail(new VolleyError("Can not read " + mFile, e));
+            return;
+        }
+        mCurrent = new ChunkRequest(mMethod, mUrl, mOffset, chunk);
+        mCurrent.contentType(mContentType);
+        mCurrent.longWrite();
+        mCurrent.headers(mHeaders);
+        // an empty file is sent as a single empty chunk
+        String range = size > 0
+                ? "bytes " + mOffset + "-" + (mOffset + size - 1) + "/" + mLength
+                : "bytes */" + mLength;
+        mCurrent.header(HEADER_CONTENT_RANGE, range);
+        mCurrent.header(HEADER_UPLOAD_OFFSET, mOffset);
+        if (mUploadId != null) {
+            mCurrent.header(HEADER_UPLOAD_ID, mUploadId);
+        }
+        mQueue.add(mCurrent);
+    }
+
+    private void onChunkResponse(ChunkRequest request, NetworkResponse response) {
+        if (mCanceled) {
+            return;
+        }
+        long next = request.mChunkOffset + request.mChunk.length;
+        Map<String, String> headers = response.headers;
+        if (headers != null) {
+            String uploadId = headers.get(HEADER_UPLOAD_ID);
+            if (uploadId != null) {
+                mUploadId = uploadId;
+            }
+            String offset = headers.get(HEADER_UPLOAD_OFFSET);
+            if (offset != null) {
+                try {
+                    // the server knows best how much it has stored
+                    next = Long.parseLong(offset.trim());
+                } catch (NumberFormatException e) {
+                    VolleyLog.e("Invalid %s header: %s", HEADER_UPLOAD_OFFSET, offset);
+                }
+            }
+        }
+        mOffset = Math.max(0, Math.min(next, mLength));
+
+        if (mOffset <= request.mChunkOffset && mOffset < mLength) {
+            // the server did not take the chunk, sending it again counts as a retry
+            saveState();
+            if (mChunkRetries < mMaxChunkRetries) {
+                mChunkRetries++;
+                VolleyLog.d("Server kept offset at %d, resending [retry=%d]", mOffset, mChunkRetries);
+                sendChunk();
+            } else {
+                fail(new VolleyError("Upload offset did not advance past " + mOffset));
+            }
+            return;
+        }
+        mChunkRetries = 0;
+
+        if (mListener != null) {
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mSessionStart);
+            mListener.onProgress(mOffset, mLength, (mOffset - mSessionStartOffset) * 1000 / elapsed);
+        }
+
+        if (mOffset >= mLength) {
+            mStateFile.delete();
+            mCurrent = null;
+            if (mListener != null) {
+                mListener.onComplete(response);
+            }
+            return;
+        }
+        saveState();
+        sendChunk();
+    }
+
+    private void onChunkError(VolleyError error) {
+        if (mCanceled) {
+            return;
+        }
+        if (mChunkRetries < mMaxChunkRetries) {
+            mChunkRetries++;
+            VolleyLog.d("Retrying chunk at %d [retry=%d]", mOffset, mChunkRetries);
+            sendChunk();
+            return;
+        }
+        fail(error);
+    }
+
+    private void fail(VolleyError error) {
+        mCurrent = null;
+        if (mListener != null) {
+            mListener.onError(error);
+        }
+    }
+
+    private byte[] readChunk(long offset, int size) throws IOException {
+        byte[] chunk = new byte[size];
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(offset);
+            file.readFully(chunk);
+        } finally {
+            file.close();
+        }
+        return chunk;
+    }
+
+    private void restoreState() {
+        mOffset = 0;
+        mUploadId = null;
+        if (!mStateFile.exists()) {
+            return;
+        }
+        Properties state = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mStateFile);
+            state.load(in);
+            // only resume the same upload of the same, unchanged file
+            if (mUrl.equals(state.getProperty(STATE_URL))
+                    && mFile.getAbsolutePath().equals(state.getProperty(STATE_FILE))
+                    && String.valueOf(mLength).equals(state.getProperty(STATE_LENGTH))
+                    && String.valueOf(mFile.lastModified()).equals(state.getProperty(STATE_LAST_MODIFIED))) {
+                mOffset = Math.min(Long.parseLong(state.getProperty(STATE_OFFSET, "0")), mLength);
+                mUploadId = state.getProperty(STATE_UPLOAD_ID);
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "error on reading upload state");
+        } catch (NumberFormatException e) {
+            VolleyLog.e(e, "error on reading upload state");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    private void saveState() {
+        Properties state = new Properties();
+        state.setProperty(STATE_URL, mUrl);
+        state.setProperty(STATE_FILE, mFile.getAbsolutePath());
+        state.setProperty(STATE_LENGTH, String.valueOf(mLength));
+        state.setProperty(STATE_LAST_MODIFIED, String.valueOf(mFile.lastModified()));
+        state.setProperty(STATE_OFFSET, String.valueOf(mOffset));
+        if (mUploadId != null) {
+            state.setProperty(STATE_UPLOAD_ID, mUploadId);
+        }
+        File temp = new File(mStateFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            state.store(out, null);
+            out.close();
+            out = null;
+            if (!temp.renameTo(mStateFile)) {
+                VolleyLog.e("Can not store upload state to %s", mStateFile);
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "error on storing upload state");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    private class ChunkRequest extends OkRequest<NetworkResponse> {
+
+        private final long mChunkOffset;
+
+        private final byte[] mChunk;
+
+        ChunkRequest(int method, String url, long offset, byte[] chunk) {
+            super(method, url, null);
+            this.mChunkOffset = offset;
+            this.mChunk = chunk;
+            setShouldCache(false);
+        }
+
+        @Override
+        public byte[] getBody() throws AuthFailureError {
+            // the chunk is kept as is, so retries of this request send the same bytes
+            return mChunk;
+        }
+
+        @Override
+        protected Response<NetworkResponse> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response, null);
+        }
+
+        @Override
+        protected void deliverResponse(NetworkResponse response) {
+            super.deliverResponse(response);
+            onChunkResponse(this, response);
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            super.deliverError(error);
+            onChunkError(error);
+        }
+    }
+}
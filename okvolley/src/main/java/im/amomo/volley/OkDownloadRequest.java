@@ -0,0 +1,266 @@
+package im.amomo.volley;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A GET request which streams the response body to a file instead of memory.
+ * <p/>
+ * The body is written to {@code <target>.part} and moved to the target once complete. The
+ * entity validator (ETag, or Last-Modified when there is no ETag) is stored next to it, so a
+ * retry or a new request for the same target after an app restart resumes with
+ * {@code Range}/{@code If-Range} instead of starting from byte zero. If the resource changed in
+ * the meantime the server answers with the full body and the download starts over.
+ */
+public class OkDownloadRequest extends OkRequest<File> {
+
+    /**
+     * 'Range' header name
+     */
+    public static final String HEADER_RANGE = "Range";
+
+    /**
+     * 'If-Range' header name
+     */
+    public static final String HEADER_IF_RANGE = "If-Range";
+
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static final String ENCODING_IDENTITY = "identity";
+
+    private static final int HTTP_PARTIAL = 206;
+
+    private final File mTarget;
+
+    private final File mPartFile;
+
+    private final File mValidatorFile;
+
+    /**
+     * construct method
+     *
+     * @param url           request url
+     * @param target        file the body is written to
+     * @param listener      response listener, receives the target file
+     * @param errorListener error listener see {@link com.android.volley.Response.ErrorListener}
+     */
+    public OkDownloadRequest(String url, File target, Response.Listener<File> listener,
+                             Response.ErrorListener errorListener) {
+        super(Method.GET, url, listener, errorListener);
+        this.mTarget = target;
+        this.mPartFile = new File(target.getPath() + ".part");
+        this.mValidatorFile = new File(target.getPath() + ".part.validator");
+        setShouldCache(false);
+        // byte ranges must refer to the stored representation, not a transparently gzipped one
+        acceptEncoding(ENCODING_IDENTITY);
+        longRead();
+    }
+
+    /**
+     * set download progress listener, called on the main thread at a bounded rate
+     *
+     * @param listener progress listener
+     * @return this request
+     */
+    public OkDownloadRequest setProgressListener(ProgressListener listener) {
+        setDownloadProgressListener(listener);
+        return this;
+    }
+
+    /**
+     * get download target
+     *
+     * @return file the body is written to
+     */
+    public File getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * get number of bytes already on disk from previous attempts
+     *
+     * @return resumable byte count
+     */
+    public long getDownloadedBytes() {
+        return mPartFile.length();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = super.getHeaders();
+        long offset = mPartFile.length();
+        if (offset <= 0) {
+            return headers;
+        }
+        String validator = readValidator();
+        if (validator == null) {
+            // nothing to validate a resume against
+            discardPartial();
+            return headers;
+        }
+        headers = new HashMap<String, String>(headers);
+        headers.put(HEADER_RANGE, "bytes=" + offset + "-");
+        headers.put(HEADER_IF_RANGE, validator);
+        return headers;
+    }
+
+    /**
+     * Stream a successful response body to the part file and move it to the target once
+     * complete. Called by {@link OkNetwork} on the network dispatcher thread.
+     */
+    void writeResponse(com.squareup.okhttp.Response response) throws IOException {
+        boolean partial = response.code() == HTTP_PARTIAL;
+        long offset = 0;
+        long total = -1;
+        if (partial) {
+            offset = mPartFile.length();
+            long[] range = parseContentRange(response.header(HEADER_CONTENT_RANGE));
+            if (range == null || range[0] != offset) {
+                discardPartial();
+                throw new IOException("Unexpected Content-Range for " + getUrl());
+            }
+            total = range[1];
+        }
+
+        ResponseBody body = response.body();
+        long contentLength = body.contentLength();
+        if (total < 0 && contentLength >= 0) {
+            total = offset + contentLength;
+        }
+        writeValidator(response);
+
+        ProgressReporter progress = getDownloadProgress();
+        if (progress != null) {
+            progress.reset();
+        }
+        InputStream in = body.byteStream();
+        OutputStream out = new FileOutputStream(mPartFile, partial);
+        long written = offset;
+        try {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+                if (progress != null) {
+                    progress.report(written, total);
+                }
+            }
+        } finally {
+            try {
+                out.close();
+            } finally {
+                body.close();
+            }
+        }
+
+        if (total >= 0 && written != total) {
+            throw new IOException(String.format("Incomplete download [%d of %d bytes]", written, total));
+        }
+        if (mTarget.exists() && !mTarget.delete()) {
+            throw new IOException("Can not replace " + mTarget);
+        }
+        if (!mPartFile.renameTo(mTarget)) {
+            throw new IOException("Can not move download to " + mTarget);
+        }
+        mValidatorFile.delete();
+        if (progress != null) {
+            progress.finish(written, total);
+        }
+    }
+
+    /**
+     * Drop the bytes of previous attempts, the next attempt starts from byte zero
+     */
+    void discardPartial() {
+        mPartFile.delete();
+        mValidatorFile.delete();
+    }
+
+    @Override
+    protected Response<File> parseNetworkResponse(NetworkResponse response) {
+        return Response.success(mTarget, null);
+    }
+
+    private String readValidator() {
+        if (!mValidatorFile.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mValidatorFile);
+            byte[] bytes = new byte[(int) mValidatorFile.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+            String validator = new String(bytes, 0, offset, CHARSET_UTF8).trim();
+            return validator.length() > 0 ? validator : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    private void writeValidator(com.squareup.okhttp.Response response) throws IOException {
+        String validator = response.header(HEADER_ETAG);
+        if (validator == null || validator.startsWith("W/")) {
+            // weak etags can not be used with If-Range
+            validator = response.header(HEADER_LAST_MODIFIED);
+        }
+        if (validator == null) {
+            mValidatorFile.delete();
+            return;
+        }
+        OutputStream out = new FileOutputStream(mValidatorFile);
+        try {
+            out.write(validator.getBytes(CHARSET_UTF8));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Parse 'bytes start-end/total' into start and total, total is -1 if unknown
+     */
+    private static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        try {
+            int dash = contentRange.indexOf('-');
+            int slash = contentRange.indexOf('/');
+            if (dash < 0 || slash < dash) {
+                return null;
+            }
+            long start = Long.parseLong(contentRange.substring(6, dash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[]{start, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -5,17 +5,26 @@ import com.android.volley.Request;
 import com.android.volley.Request.Method;
 import com.android.volley.VolleyLog;
 import com.squareup.okhttp.CertificatePinner;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import android.os.SystemClock;
 
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -24,15 +33,51 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import okio.BufferedSource;
+import okio.Okio;
+
+import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
+import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
+
 /**
  * Created by GoogolMo on 10/22/13.
  */
 public class OkHttpStack implements OkStack {
 
+    private static final int MAX_ASYNC_REQUESTS_PER_HOST = 16;
+
+    private static final int DEFAULT_MAX_REDIRECTS = 5;
+
+    private static final int HTTP_TEMP_REDIRECT = 307;
+
+    private static final int HTTP_PERM_REDIRECT = 308;
+
     private final OkHttpClient mClient;
 
+    /**
+     * Runs hedged calls only, so their per-host limit does not change the shared dispatcher
+     */
+    private final Dispatcher mHedgeDispatcher = new Dispatcher();
+
     private final UrlRewriter mUrlRewriter;
 
+    private volatile TrafficRecorder mRecorder;
+
+    private volatile HedgeBudget mHedgeBudget = new HedgeBudget();
+
+    private volatile RedirectCache mRedirectCache;
+
+    private volatile int mMaxRedirects = DEFAULT_MAX_REDIRECTS;
+
+    private volatile HostSelector mHostSelector;
+
+    private TlsSessionCache mTlsSessionCache;
+
+    private boolean mTrustAllCerts;
+
+    private final boolean mCustomSslSocketFactory;
+
     /**
      * An interface for transforming URLs before use.
      */
@@ -57,6 +102,12 @@ public class OkHttpStack implements OkStack {
         this.mClient = new OkHttpClient();
         this.mUrlRewriter = urlRewriter;
         this.mClient.setSslSocketFactory(sslSocketFactory);
+        this.mCustomSslSocketFactory = sslSocketFactory != null;
+        // hedged calls run on their own dispatcher, let both calls of every network thread through
+        this.mHedgeDispatcher.setMaxRequestsPerHost(MAX_ASYNC_REQUESTS_PER_HOST);
+        // redirects are followed by performRequest, which learns permanent ones
+        this.mClient.setFollowRedirects(false);
+        this.mClient.setFollowSslRedirects(false);
     }
 
     /**
@@ -80,13 +131,21 @@ public class OkHttpStack implements OkStack {
             url = rewritten;
         }
 
+        // the request timeouts always apply, not the 10 s defaults of OkHttpClient; a plain
+        // Volley request gets the 2.5 s of its retry policy
         OkHttpClient client = mClient.clone();
 
         int connectionTimeoutMs = request.getTimeoutMs();
         int readTimeoutMs = request.getTimeoutMs();
         int writeTimeoutMs = request.getTimeoutMs();
 
-        if (request instanceof OkRequest)
+        if (request instanceof OkRequest && ((OkRequest) request).getAdaptiveConnectTimeoutMs() > 0)
+        {
+            connectionTimeoutMs = ((OkRequest) request).getAdaptiveConnectTimeoutMs();
+            readTimeoutMs = ((OkRequest) request).getAdaptiveReadTimeoutMs();
+            writeTimeoutMs = ((OkRequest) request).getAdaptiveWriteTimeoutMs();
+        }
+        else if (request instanceof OkRequest)
         {
             connectionTimeoutMs = Math.max(((OkRequest)request).getConnectionTimeoutMs(), connectionTimeoutMs);
             readTimeoutMs = Math.max(((OkRequest)request).getReadTimeoutMs(), readTimeoutMs);
@@ -109,8 +168,42 @@ public class OkHttpStack implements OkStack {
         }
 
         setConnectionParametersForRequest(builder, request);
+        long start = System.nanoTime();
+        long hedgeDelayMs = request instanceof OkRequest ? ((OkRequest<?>) request).getHedgeDelayMs() : -1;
         // Initialize HttpResponse with data from the okhttp.
-        Response okhttpResponse = mClient.newCall(builder.build()).execute();
+        com.squareup.okhttp.Request okhttpRequest = builder.build();
+        RedirectCache redirectCache = mRedirectCache;
+        if (redirectCache != null) {
+            com.squareup.okhttp.Request redirected = cachedRedirect(okhttpRequest, redirectCache);
+            if (redirected != null) {
+                request.addMarker("redirect-cached");
+                okhttpRequest = redirected;
+            }
+        }
+        Response okhttpResponse;
+        HostSelector hostSelector = mHostSelector;
+        List<String> hosts = hostSelector != null ? hostSelector.select(okhttpRequest.httpUrl().host()) : null;
+        if (hosts != null) {
+            okhttpResponse = execute(client, okhttpRequest, hedgeDelayMs, hostSelector, hosts, request);
+            // redirects are resolved against the host which answered
+            okhttpRequest = withHost(okhttpRequest, okhttpResponse.request().httpUrl().host());
+        } else {
+            okhttpResponse = execute(client, okhttpRequest, hedgeDelayMs);
+        }
+        int maxRedirects = mMaxRedirects;
+        for (int redirects = 0; ; redirects++) {
+            com.squareup.okhttp.Request followUp = followUp(okhttpRequest, okhttpResponse, redirectCache);
+            if (followUp == null) {
+                break;
+            }
+            closeQuietly(okhttpResponse);
+            if (redirects >= maxRedirects) {
+                throw new ProtocolException("Too many redirects: " + (redirects + 1));
+            }
+            request.addMarker("redirect");
+            okhttpRequest = followUp;
+            okhttpResponse = execute(client, okhttpRequest, hedgeDelayMs);
+        }
 
         int responseCode = okhttpResponse.code();
         if (responseCode == -1) {
@@ -118,9 +211,277 @@ public class OkHttpStack implements OkStack {
             // Signal to the caller that something was wrong with the connection.
             throw new IOException("Could not retrieve response code from HttpUrlConnection.");
         }
+
+        TrafficRecorder recorder = mRecorder;
+        if (recorder != null) {
+            okhttpResponse = record(recorder, request, okhttpResponse, start);
+        }
         return okhttpResponse;
     }
 
+    private Response execute(OkHttpClient client, com.squareup.okhttp.Request request, long hedgeDelayMs)
+            throws IOException {
+        if (hedgeDelayMs >= 0) {
+            HedgeBudget budget = mHedgeBudget;
+            budget.onHedgeable();
+            // client is the clone of this request, the dispatcher is not shared with other calls
+            client.setDispatcher(mHedgeDispatcher);
+            return new HedgedCall(client, request).execute(hedgeDelayMs, budget);
+        }
+        return client.newCall(request).execute();
+    }
+
+    /**
+     * Send a request to the selected hosts in turn until one can be connected to
+     */
+    private Response execute(OkHttpClient client, com.squareup.okhttp.Request request, long hedgeDelayMs,
+                             HostSelector hostSelector, List<String> hosts, Request<?> volleyRequest)
+            throws IOException {
+        for (int i = 0; ; i++) {
+            String host = hosts.get(i);
+            long start = SystemClock.elapsedRealtime();
+            final AtomicBoolean connected = new AtomicBoolean();
+            OkHttpClient attempt = client.clone();
+            // network interceptors only run once a connection is established
+            attempt.networkInterceptors().add(new Interceptor() {
+                @Override
+                public Response intercept(Chain chain) throws IOException {
+                    connected.set(true);
+                    return chain.proceed(chain.request());
+                }
+            });
+            try {
+                Response response = execute(attempt, withHost(request, host), hedgeDelayMs);
+                hostSelector.onResponse(host, SystemClock.elapsedRealtime() - start, response.code() >= 500);
+                return response;
+            } catch (IOException e) {
+                boolean connectFailure = HostSelector.isConnectFailure(e, connected.get());
+                hostSelector.onFailure(host, connectFailure);
+                // nothing was sent yet, so even non-idempotent requests can go elsewhere
+                if (!connectFailure || i + 1 >= hosts.size()) {
+                    throw e;
+                }
+                hostSelector.onFailover();
+                volleyRequest.addMarker("host-failover");
+            }
+        }
+    }
+
+    private static com.squareup.okhttp.Request withHost(com.squareup.okhttp.Request request, String host) {
+        if (host.equals(request.httpUrl().host())) {
+            return request;
+        }
+        return request.newBuilder().url(request.httpUrl().newBuilder().host(host).build()).build();
+    }
+
+    /**
+     * Build the request a redirect points to, null if the response is not a redirect which
+     * can be followed. Permanent redirects are remembered in the redirect cache.
+     */
+    private static com.squareup.okhttp.Request followUp(com.squareup.okhttp.Request request, Response response,
+                                                        RedirectCache redirectCache) {
+        int code = response.code();
+        if (code != HTTP_MOVED_PERM && code != HTTP_MOVED_TEMP && code != HTTP_SEE_OTHER
+                && code != HTTP_TEMP_REDIRECT && code != HTTP_PERM_REDIRECT) {
+            return null;
+        }
+        String location = response.header("Location");
+        HttpUrl target = location != null ? request.httpUrl().resolve(location) : null;
+        // never downgrade from https to http
+        if (target == null || request.isHttps() && !target.isHttps()) {
+            return null;
+        }
+
+        if (redirectCache != null && (code == HTTP_MOVED_PERM || code == HTTP_PERM_REDIRECT)) {
+            redirectCache.put(request.urlString(), target.toString());
+        }
+        return redirect(request, code, target);
+    }
+
+    /**
+     * Build the request a known permanent redirect points to, null if none is known. Only GET
+     * and HEAD requests are redirected, the cache does not know whether a 301 or 308 was
+     * learned and so whether another method would be rewritten to GET.
+     */
+    private static com.squareup.okhttp.Request cachedRedirect(com.squareup.okhttp.Request request,
+                                                              RedirectCache redirectCache) {
+        String method = request.method();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return null;
+        }
+        String url = request.urlString();
+        String resolved = redirectCache.resolve(url);
+        HttpUrl target = resolved.equals(url) ? null : HttpUrl.parse(resolved);
+        if (target == null || request.isHttps() && !target.isHttps()) {
+            return null;
+        }
+        return redirect(request, HTTP_MOVED_PERM, target);
+    }
+
+    /**
+     * Point a request to a redirect target, with the method and headers the redirect allows
+     */
+    private static com.squareup.okhttp.Request redirect(com.squareup.okhttp.Request request, int code,
+                                                        HttpUrl target) {
+        com.squareup.okhttp.Request.Builder builder = request.newBuilder().url(target.toString());
+        String method = request.method();
+        if (code == HTTP_SEE_OTHER
+                || (code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP) && !"GET".equals(method) && !"HEAD".equals(method)) {
+            builder.method("GET", null);
+            builder.removeHeader(OkRequest.HEADER_CONTENT_TYPE);
+            builder.removeHeader(OkRequest.HEADER_CONTENT_LENGTH);
+        }
+        if (!target.host().equals(request.httpUrl().host())) {
+            // credentials are not handed to another host
+            builder.removeHeader(OkRequest.HEADER_AUTHORIZATION);
+        }
+        return builder.build();
+    }
+
+    private static void closeQuietly(Response response) {
+        if (response.body() != null) {
+            try {
+                response.body().close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * set the cache of permanent redirects, requests to a known old url go straight to the
+     * new one
+     *
+     * @param redirectCache redirect cache, null to forget permanent redirects
+     * @return this http stack
+     */
+    public OkHttpStack setRedirectCache(RedirectCache redirectCache) {
+        this.mRedirectCache = redirectCache;
+        return this;
+    }
+
+    public RedirectCache getRedirectCache() {
+        return mRedirectCache;
+    }
+
+    /**
+     * set max number of redirects followed for one request
+     *
+     * @param maxRedirects max redirects, 0 to follow none
+     * @return this http stack
+     */
+    public OkHttpStack setMaxRedirects(int maxRedirects) {
+        this.mMaxRedirects = maxRedirects;
+        return this;
+    }
+
+    /**
+     * set the selector which routes requests to the best of several hosts serving the same
+     * API, applied after the {@link UrlRewriter}
+     *
+     * @param hostSelector host selector, null to send requests to their own host
+     * @return this http stack
+     */
+    public OkHttpStack setHostSelector(HostSelector hostSelector) {
+        this.mHostSelector = hostSelector;
+        return this;
+    }
+
+    public HostSelector getHostSelector() {
+        return mHostSelector;
+    }
+
+    /**
+     * Record every exchange made through this stack, or stop recording with null
+     *
+     * @param recorder recorder, can be null
+     * @return this http stack
+     */
+    public OkHttpStack setTrafficRecorder(TrafficRecorder recorder) {
+        this.mRecorder = recorder;
+        return this;
+    }
+
+    /**
+     * set the budget which caps hedged calls, see {@link OkRequest#hedge(long)}
+     *
+     * @param budget hedge budget
+     * @return this http stack
+     */
+    public OkHttpStack setHedgeBudget(HedgeBudget budget) {
+        this.mHedgeBudget = budget;
+        return this;
+    }
+
+    /**
+     * get the hedge budget with its win-rate metrics
+     *
+     * @return hedge budget
+     */
+    public HedgeBudget getHedgeBudget() {
+        return mHedgeBudget;
+    }
+
+    private static Response record(TrafficRecorder recorder, Request<?> request, Response response, long start)
+            throws IOException, AuthFailureError {
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        TrafficRecorder.Record head = new TrafficRecorder.Record(methodName(request), request.getUrl(),
+                response.code(), latencyMs, response.headers(), new byte[0]);
+        final ResponseBody body = response.body();
+        if (body == null) {
+            try {
+                recorder.record(head);
+            } catch (IOException e) {
+                VolleyLog.e(e, "error on recording %s", head.url);
+            }
+            return response;
+        }
+        // the body is recorded while the caller reads it
+        final BufferedSource source = Okio.buffer(recorder.tee(head, body.source()));
+        return response.newBuilder()
+                .body(new ResponseBody() {
+                    @Override
+                    public MediaType contentType() {
+                        return body.contentType();
+                    }
+
+                    @Override
+                    public long contentLength() throws IOException {
+                        return body.contentLength();
+                    }
+
+                    @Override
+                    public BufferedSource source() {
+                        return source;
+                    }
+                })
+                .build();
+    }
+
+    /* package */
+    static String methodName(Request<?> request) throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                return request.getPostBody() != null ? "POST" : "GET";
+            case Method.DELETE:
+                return "DELETE";
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.HEAD:
+                return "HEAD";
+            case Method.OPTIONS:
+                return "OPTIONS";
+            case Method.TRACE:
+                return "TRACE";
+            case Method.PATCH:
+                return "PATCH";
+            default:
+                return "GET";
+        }
+    }
+
     /* package */
     static void setConnectionParametersForRequest(com.squareup.okhttp.Request.Builder builder,
                                                   Request<?> request) throws IOException, AuthFailureError {
@@ -169,14 +530,28 @@ public class OkHttpStack implements OkStack {
                 throw new IllegalStateException("Unknown method type.");
         }
     }
-    private static RequestBody createRequestBody(Request r) throws AuthFailureError {
+    static RequestBody createRequestBody(Request r) throws AuthFailureError {
         if (VolleyLog.DEBUG) {
             VolleyLog.d("RequestHeader: %1$s:%2$s", OkRequest.HEADER_CONTENT_TYPE, r.getBodyContentType());
         }
-        final byte[] body = r.getBody();
-        if (body == null) return null;
-
-        return RequestBody.create(MediaType.parse(r.getBodyContentType()), body);
+        RequestBody requestBody;
+        ReplayableBody replayable = r instanceof OkRequest ? ((OkRequest<?>) r).getReplayableBody() : null;
+        if (replayable != null) {
+            // streamed from the frozen body, retries and hedges send the very same bytes
+            requestBody = replayable.toRequestBody(MediaType.parse(r.getBodyContentType()));
+        } else {
+            final byte[] body = r.getBody();
+            if (body == null) return null;
+
+            requestBody = RequestBody.create(MediaType.parse(r.getBodyContentType()), body);
+        }
+        if (r instanceof OkRequest) {
+            ProgressReporter progress = ((OkRequest<?>) r).getUploadProgress();
+            if (progress != null) {
+                requestBody = new ProgressRequestBody(requestBody, progress);
+            }
+        }
+        return requestBody;
     }
 
     /**
@@ -195,10 +570,44 @@ public class OkHttpStack implements OkStack {
      * @return this http stack
      */
     public OkHttpStack trustAllCerts() {
-        this.mClient.setSslSocketFactory(getTrustedFactory());
+        this.mTrustAllCerts = true;
+        this.mClient.setSslSocketFactory(mTlsSessionCache != null
+                ? mTlsSessionCache.getSocketFactory(true) : getTrustedFactory());
         return this;
     }
 
+    /**
+     * keep TLS sessions in a persisted cache so handshakes after a restart are resumed. The
+     * cache brings its own socket factory with the platform trust store, so it can not be
+     * used with a factory passed to {@link #OkHttpStack(UrlRewriter, SSLSocketFactory)}.
+     *
+     * @param cache session cache, see {@link TlsSessionCache}
+     * @return this http stack
+     * @throws IllegalStateException if the stack was created with its own socket factory
+     */
+    public OkHttpStack setTlsSessionCache(TlsSessionCache cache) {
+        if (this.mCustomSslSocketFactory) {
+            // replacing it would drop custom trust managers and client certificates
+            throw new IllegalStateException("Custom SSLSocketFactory set, it can not use a TlsSessionCache");
+        }
+        if (this.mTlsSessionCache != null) {
+            this.mClient.networkInterceptors().remove(this.mTlsSessionCache.getInterceptor());
+        }
+        this.mTlsSessionCache = cache;
+        this.mClient.setSslSocketFactory(cache.getSocketFactory(mTrustAllCerts));
+        this.mClient.networkInterceptors().add(cache.getInterceptor());
+        return this;
+    }
+
+    /**
+     * get TLS session cache with its resumption rate
+     *
+     * @return session cache, null if sessions are not persisted
+     */
+    public TlsSessionCache getTlsSessionCache() {
+        return mTlsSessionCache;
+    }
+
     /**
      * set request trust all hosts include hosts with untrusts
      *
@@ -0,0 +1,91 @@
+package im.amomo.volley;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A request which parses the JSON response straight from the response bytes with a streaming
+ * {@link JsonReader}. No intermediate {@link String} or DOM is built; the supplied
+ * {@link TypeAdapter} reads the tokens it needs into its own type.
+ * <p/>
+ * {@link JsonReader} is available from API level 11, the constructor throws
+ * {@link UnsupportedOperationException} on older versions.
+ *
+ * @param <T> parsed response type
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class OkJsonRequest<T> extends OkRequest<T> {
+
+    /**
+     * Reads a value of type T from a streaming JSON reader
+     */
+    public interface TypeAdapter<T> {
+        /**
+         * Read one value from the reader. Called on the network dispatcher thread.
+         */
+        public T read(JsonReader reader) throws IOException;
+    }
+
+    private final TypeAdapter<T> mAdapter;
+
+    /**
+     * construct method
+     *
+     * @param method        request method
+     * @param url           request url
+     * @param adapter       adapter reading the response value
+     * @param listener      response listener see {@link com.android.volley.Response.Listener}
+     * @param errorListener error listener see {@link com.android.volley.Response.ErrorListener}
+     */
+    public OkJsonRequest(int method, String url, TypeAdapter<T> adapter,
+                         Response.Listener<T> listener, Response.ErrorListener errorListener) {
+        super(method, url, listener, errorListener);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            throw new UnsupportedOperationException("OkJsonRequest needs API level 11");
+        }
+        if (adapter == null) {
+            throw new NullPointerException("adapter can not be null!");
+        }
+        this.mAdapter = adapter;
+        acceptJson();
+    }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        JsonReader reader = null;
+        try {
+            // JSON defaults to UTF-8 unlike the ISO-8859-1 default of HTTP text
+            reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(response.data),
+                    HttpHeaderParser.parseCharset(response.headers, CHARSET_UTF8)));
+            return Response.success(mAdapter.read(reader), HttpHeaderParser.parseCacheHeaders(response));
+        } catch (UnsupportedEncodingException e) {
+            return Response.error(new ParseError(e));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        } catch (IllegalStateException e) {
+            // thrown by the reader on unexpected tokens
+            return Response.error(new ParseError(e));
+        } catch (NumberFormatException e) {
+            return Response.error(new ParseError(e));
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+}
@@ -12,16 +12,21 @@ import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.Authenticator;
 import com.android.volley.toolbox.ByteArrayPool;
+import com.android.volley.toolbox.PoolingByteArrayOutputStream;
 import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
 
 import android.os.SystemClock;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -32,6 +37,7 @@ import java.util.TreeMap;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
 import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
 
@@ -49,12 +55,31 @@ public class OkNetwork implements Network {
 
     private static final int DEFAULT_POOL_SIZE = 4096;
 
+    private static final int BUDGET_CHUNK_SIZE = 64 * 1024;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Wall clock times OkHttp stamps on every response it receives
+     */
+    private static final String HEADER_SENT_MILLIS = "OkHttp-Sent-Millis";
+
+    private static final String HEADER_RECEIVED_MILLIS = "OkHttp-Received-Millis";
+
     protected final OkStack mHttpStack;
 
     protected final ByteArrayPool mPool;
 
     private final SimpleDateFormat mDateFormatter;
 
+    private volatile ByteBudget mByteBudget;
+
+    private final BandwidthEstimator mBandwidthEstimator = new BandwidthEstimator();
+
+    private volatile TokenRefresher mTokenRefresher;
+
+    private volatile NetworkSlots mNetworkSlots;
+
     /**
      * @param httpStack HTTP stack to be used
      */
@@ -74,10 +99,183 @@ public class OkNetwork implements Network {
         mDateFormatter = new SimpleDateFormat(PATTERN_RFC1123, Locale.US);
     }
 
+    /**
+     * set the budget for response bytes buffered at the same time
+     *
+     * @param byteBudget budget, null for no limit
+     * @return this network
+     */
+    public OkNetwork setByteBudget(ByteBudget byteBudget) {
+        mByteBudget = byteBudget;
+        return this;
+    }
+
+    /**
+     * get the budget for response bytes buffered at the same time
+     *
+     * @return budget, null if there is no limit
+     */
+    public ByteBudget getByteBudget() {
+        return mByteBudget;
+    }
+
+    /**
+     * set the slots which limit how many requests do network I/O at the same time
+     *
+     * @param networkSlots slots, null for no limit
+     * @return this network
+     */
+    public OkNetwork setNetworkSlots(NetworkSlots networkSlots) {
+        mNetworkSlots = networkSlots;
+        return this;
+    }
+
+    public NetworkSlots getNetworkSlots() {
+        return mNetworkSlots;
+    }
+
+    /**
+     * Sign requests to the given hosts with a bearer token of the authenticator. On a 401 the
+     * token is refreshed once for all concurrently failing requests, see
+     * {@link TokenRefresher}, and the request is sent again without using up a retry.
+     * Requests to other hosts are not signed.
+     *
+     * @param authenticator authenticator, null to stop signing requests
+     * @param hosts         hosts to send the token to, at least one
+     * @return this network
+     */
+    public OkNetwork setAuthenticator(Authenticator authenticator, String... hosts) {
+        mTokenRefresher = authenticator != null ? new TokenRefresher(authenticator, hosts) : null;
+        return this;
+    }
+
+    /**
+     * get the token refresher with its refresh metrics
+     *
+     * @return refresher, null if requests are not signed
+     */
+    public TokenRefresher getTokenRefresher() {
+        return mTokenRefresher;
+    }
+
+    /**
+     * get round trip time and throughput estimate used for adaptive timeouts
+     *
+     * @return estimator, see {@link BandwidthEstimator}
+     */
+    public BandwidthEstimator getBandwidthEstimator() {
+        return mBandwidthEstimator;
+    }
+
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        NetworkSlots slots = mNetworkSlots;
+        if (slots == null) {
+            return performRecordedRequest(request);
+        }
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        }
+        long ioStart = SystemClock.elapsedRealtime();
+        try {
+            return performRecordedRequest(request);
+        } finally {
+            // the dispatcher parses after this, without holding a slot
+            slots.release(SystemClock.elapsedRealtime() - ioStart);
+        }
+    }
+
+    /**
+     * Run the request, recording its network time and bytes to its endpoint stats
+     */
+    private NetworkResponse performRecordedRequest(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
+        EndpointStats stats = request instanceof OkRequest ? ((OkRequest<?>) request).getEndpointStats() : null;
+        if (stats == null) {
+            return performRequest(request, requestStart);
+        }
+        NetworkResponse response = null;
+        try {
+            response = performRequest(request, requestStart);
+            return response;
+        } finally {
+            long bytes = response != null && !response.notModified && response.data != null
+                    ? response.data.length : 0;
+            stats.recordNetwork(SystemClock.elapsedRealtime() - requestStart, bytes);
+        }
+    }
+
+    private NetworkResponse performRequest(Request<?> request, long requestStart) throws VolleyError {
+        OkRequest.CacheMode cacheMode = request instanceof OkRequest
+                ? ((OkRequest<?>) request).getCacheMode() : OkRequest.CacheMode.DEFAULT;
+
+        if (cacheMode == OkRequest.CacheMode.CACHE_FIRST) {
+            NetworkResponse cached = staleResponse(request, requestStart);
+            if (cached != null) {
+                request.addMarker("cache-first-stale");
+                return cached;
+            }
+        }
+        if (cacheMode != OkRequest.CacheMode.STALE_IF_ERROR
+                && cacheMode != OkRequest.CacheMode.STALE_WHILE_REVALIDATE) {
+            return performNetworkRequest(request, requestStart);
+        }
+
+        try {
+            return performNetworkRequest(request, requestStart);
+        } catch (VolleyError e) {
+            NetworkResponse stale = canServeStale(e) ? staleResponse(request, requestStart) : null;
+            if (stale == null) {
+                throw e;
+            }
+            request.addMarker("stale-if-error");
+            return stale;
+        }
+    }
+
+    /**
+     * Returns the expired cache entry of the request as a response, or null if there is none
+     * or it is older than the request allows. The response is marked no-store so the parse
+     * does not put the stale data back into the cache with a fresh expiry, and not modified
+     * if the entry was delivered already.
+     */
+    private static NetworkResponse staleResponse(Request<?> request, long requestStart) {
+        Cache.Entry entry = request.getCacheEntry();
+        if (entry == null || !((OkRequest<?>) request).isStaleUsable(entry)) {
+            return null;
+        }
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(entry.responseHeaders);
+        headers.put("Cache-Control", "no-store");
+        return new NetworkResponse(HTTP_OK, entry.data, headers, request.hasHadResponseDelivered(),
+                SystemClock.elapsedRealtime() - requestStart);
+    }
+
+    /**
+     * Only connectivity problems and server failures fall back to stale data, client errors
+     * are the answer to the request.
+     */
+    private static boolean canServeStale(VolleyError error) {
+        if (error instanceof AuthFailureError) {
+            return false;
+        }
+        if (error instanceof ServerError) {
+            return error.networkResponse == null || error.networkResponse.statusCode >= 500;
+        }
+        return error instanceof NetworkError || error instanceof TimeoutError;
+    }
+
+    private NetworkResponse performNetworkRequest(Request<?> request, long requestStart) throws VolleyError {
+        TokenRefresher refresher = mTokenRefresher;
+        if (refresher != null && !refresher.isAllowed(request.getUrl())) {
+            refresher = null;
+        }
+        boolean tokenRefreshed = false;
         while (true) {
+            String token = null;
             Response httpResponse = null;
             byte[] responseContents = null;
             Map<String, String> responseHeaders = Collections.emptyMap();
@@ -85,7 +283,21 @@ public class OkNetwork implements Network {
                 // Gather headers.
                 Map<String, String> headers = new HashMap<String, String>();
                 addCacheHeaders(headers, request.getCacheEntry());
+                if (refresher != null) {
+                    token = refresher.getToken();
+                    if (token != null) {
+                        headers.put(OkRequest.HEADER_AUTHORIZATION, String.format("Bearer %1$s", token));
+                    }
+                }
+                if (request instanceof OkRequest && ((OkRequest<?>) request).isAdaptiveTimeouts()) {
+                    mBandwidthEstimator.applyTimeouts((OkRequest<?>) request,
+                            request.getRetryPolicy().getCurrentRetryCount());
+                }
                 httpResponse = mHttpStack.performRequest(request, headers);
+                long rttMs = headersRttMs(httpResponse);
+                if (rttMs >= 0) {
+                    mBandwidthEstimator.addRtt(rttMs);
+                }
                 int statusCode = httpResponse.code();
 
                 responseHeaders = convertHeaders(httpResponse.headers());
@@ -102,9 +314,13 @@ public class OkNetwork implements Network {
                     // have to use the header fields from the cache entry plus
                     // the new ones from the response.
                     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
-                    entry.responseHeaders.putAll(responseHeaders);
+                    // The entry is shared with other readers, merge into a copy. The body
+                    // array is passed on as is so the cache can refresh only the metadata.
+                    Map<String, String> mergedHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+                    mergedHeaders.putAll(entry.responseHeaders);
+                    mergedHeaders.putAll(responseHeaders);
                     return new NetworkResponse(HTTP_NOT_MODIFIED, entry.data,
-                        entry.responseHeaders, true,
+                        mergedHeaders, true,
                         SystemClock.elapsedRealtime() - requestStart);
                 }
 
@@ -115,8 +331,12 @@ public class OkNetwork implements Network {
                 }
 
                 // Some responses such as 204s do not have content.  We must check.
-                if (httpResponse.body() != null) {
-                    responseContents = httpResponse.body().bytes();
+                if (request instanceof OkDownloadRequest && statusCode >= 200 && statusCode <= 299) {
+                    // downloads are streamed to disk instead of memory
+                    ((OkDownloadRequest) request).writeResponse(httpResponse);
+                    responseContents = new byte[0];
+                } else if (httpResponse.body() != null) {
+                    responseContents = responseBodyToBytes(request, httpResponse.body());
                 } else {
                     responseContents = new byte[0];
                 }
@@ -128,7 +348,18 @@ public class OkNetwork implements Network {
                 if (statusCode < 200 || statusCode > 299) {
                     throw new IOException();
                 }
-                return new NetworkResponse(statusCode, responseContents, responseHeaders, false);
+                // Stale data delivered by stale-while-revalidate is not delivered again when
+                // the server sends the very same body without supporting validators; only
+                // the expiry of the cache entry is refreshed.
+                Cache.Entry entry = request.getCacheEntry();
+                boolean unchanged = entry != null && request.hasHadResponseDelivered()
+                        && request instanceof OkRequest
+                        && ((OkRequest<?>) request).getCacheMode() == OkRequest.CacheMode.STALE_WHILE_REVALIDATE
+                        && Arrays.equals(entry.data, responseContents);
+                if (unchanged) {
+                    ((OkRequest<?>) request).refreshCacheEntry(responseHeaders);
+                }
+                return new NetworkResponse(statusCode, responseContents, responseHeaders, unchanged);
             } catch (SocketTimeoutException e) {
                 attemptRetryOnException("socket", request, new TimeoutError());
             } catch (MalformedURLException e) {
@@ -141,6 +372,12 @@ public class OkNetwork implements Network {
                 } else {
                     throw new NoConnectionError(e);
                 }
+                if (responseContents == null && request instanceof OkDownloadRequest) {
+                    // the part file is kept, the retry resumes where this attempt stopped
+                    VolleyLog.d("Download of %s interrupted (%s), resuming", request.getUrl(), e.toString());
+                    attemptRetryOnException("download", request, new NetworkError(e));
+                    continue;
+                }
                 if (statusCode == HTTP_MOVED_PERM || statusCode == HTTP_MOVED_TEMP) {
                     VolleyLog.e("Request at %s has been redirected to %s", request.getOriginUrl(), request.getUrl());
                 } else {
@@ -149,10 +386,18 @@ public class OkNetwork implements Network {
 
                 if (responseContents != null) {
                     networkResponse = new NetworkResponse(statusCode, responseContents, responseHeaders, false, SystemClock.elapsedRealtime() - requestStart);
-                    if (statusCode == HTTP_UNAUTHORIZED || statusCode == HTTP_FORBIDDEN) {
+                    if (statusCode == HTTP_UNAUTHORIZED && token != null && !tokenRefreshed) {
+                        // replay once with a fresh token, this does not count as a retry
+                        refresher.refresh(token);
+                        tokenRefreshed = true;
+                        request.addMarker("auth-refresh");
+                    } else if (statusCode == HTTP_UNAUTHORIZED || statusCode == HTTP_FORBIDDEN) {
                         attemptRetryOnException("auth", request, new AuthFailureError(networkResponse));
                     } else if (statusCode == HTTP_MOVED_PERM || statusCode == HTTP_MOVED_TEMP) {
                         attemptRetryOnException("redirect", request, new AuthFailureError(networkResponse));
+                    } else if (statusCode == HTTP_RANGE_NOT_SATISFIABLE && request instanceof OkDownloadRequest) {
+                        ((OkDownloadRequest) request).discardPartial();
+                        attemptRetryOnException("range", request, new ServerError(networkResponse));
                     } else {
                         // TODO: Only throw ServerError for 5xx status codes.
                         throw new ServerError(networkResponse);
@@ -164,6 +409,137 @@ public class OkNetwork implements Network {
         }
     }
 
+    /**
+     * Reads the response body into a byte[], reserving its size from the byte budget first.
+     */
+    private byte[] responseBodyToBytes(Request<?> request, ResponseBody body) throws IOException, VolleyError {
+        ByteBudget budget = mByteBudget;
+        ProgressReporter progress = request instanceof OkRequest
+                ? ((OkRequest<?>) request).getDownloadProgress() : null;
+        long contentLength = body.contentLength();
+        Reservation reservation = new Reservation(budget);
+        PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool,
+                contentLength > 0 && contentLength <= Integer.MAX_VALUE ? (int) contentLength : 0);
+        byte[] buffer = null;
+        try {
+            if (contentLength > 0) {
+                // the body and its final copy, reserved at once
+                reservation.growTo(2 * contentLength);
+            }
+            if (progress != null) {
+                progress.reset();
+            }
+            InputStream in = body.byteStream();
+            long readStart = SystemClock.elapsedRealtime();
+            buffer = mPool.getBuf(1024);
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+                if (total > reservation.mBytes) {
+                    // Content-Length was unknown or wrong, reserve as the body streams in
+                    reservation.growTo(Math.max(reservation.mBytes + BUDGET_CHUNK_SIZE, total));
+                }
+                bytes.write(buffer, 0, count);
+                if (progress != null) {
+                    progress.report(total, contentLength);
+                }
+            }
+            if (progress != null) {
+                progress.finish(total, contentLength);
+            }
+            mBandwidthEstimator.addTransfer(total, SystemClock.elapsedRealtime() - readStart - reservation.mWaitMs);
+            // toByteArray copies, both arrays are alive until it returns
+            reservation.growTo(2 * total);
+            return bytes.toByteArray();
+        } finally {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // This can happen if there was an exception above that left the body in
+                // an invalid state.
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+            mPool.returnBuf(buffer);
+            bytes.close();
+            reservation.release();
+        }
+    }
+
+    /**
+     * Bytes of one response reserved in the budget. A reservation never waits while it holds
+     * part of the budget: if the budget can not grow it right away, everything is released
+     * and the whole amount is waited for. Otherwise dispatchers each holding a part could
+     * wait for each other until they all time out.
+     */
+    private static class Reservation {
+        private final ByteBudget mBudget;
+        long mBytes;
+        // time spent waiting for the budget, not for the network
+        long mWaitMs;
+
+        Reservation(ByteBudget budget) {
+            mBudget = budget;
+        }
+
+        void growTo(long bytes) throws VolleyError {
+            if (mBudget == null || bytes <= mBytes) {
+                return;
+            }
+            if (mBudget.tryAcquire(bytes - mBytes)) {
+                mBytes = bytes;
+                return;
+            }
+            release();
+            long waitStart = SystemClock.elapsedRealtime();
+            reserve(mBudget, bytes);
+            mWaitMs += SystemClock.elapsedRealtime() - waitStart;
+            mBytes = bytes;
+        }
+
+        void release() {
+            if (mBudget != null && mBytes > 0) {
+                mBudget.release(mBytes);
+            }
+            mBytes = 0;
+        }
+    }
+
+    /**
+     * Time from sending the final request until its response headers arrived, as stamped by
+     * OkHttp. Redirects, hedge delays and the time to read the body are not part of it.
+     *
+     * @return time in milliseconds, -1 if the response carries no stamps
+     */
+    private static long headersRttMs(Response response) {
+        String sent = response.header(HEADER_SENT_MILLIS);
+        String received = response.header(HEADER_RECEIVED_MILLIS);
+        if (sent == null || received == null) {
+            return -1;
+        }
+        try {
+            long rttMs = Long.parseLong(received) - Long.parseLong(sent);
+            return rttMs >= 0 ? rttMs : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void reserve(ByteBudget budget, long bytes) throws VolleyError {
+        boolean acquired;
+        try {
+            acquired = budget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            throw new NetworkError(new IOException(String.format(Locale.US,
+                    "Memory budget exceeded [reserve=%d, used=%d, capacity=%d]",
+                    bytes, budget.getUsed(), budget.getCapacity())));
+        }
+    }
+
     /**
      * Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete.
      */
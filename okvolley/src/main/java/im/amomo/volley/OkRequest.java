@@ -11,22 +11,24 @@ import com.android.volley.RetryPolicy;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
 import com.android.volley.toolbox.Authenticator;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import android.os.SystemClock;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by GoogolMo on 12/18/13.
@@ -114,7 +116,43 @@ public abstract class OkRequest<T> extends Request<T> {
 
     private static final String CRLF = "\r\n";
 
-    protected ConcurrentHashMap<String, String> mRequestHeaders;
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    private static final long DEFAULT_EXPECTED_RESPONSE_BYTES = 16 * 1024;
+
+    /**
+     * How a request uses the cache
+     */
+    public enum CacheMode {
+        /**
+         * Volley cache semantics, driven by the response cache headers
+         */
+        DEFAULT,
+        /**
+         * Never read from or write to the cache
+         */
+        NETWORK_ONLY,
+        /**
+         * Use any cached response, even an expired one, and only go to the network when there
+         * is none
+         */
+        CACHE_FIRST,
+        /**
+         * Deliver an expired cached response at once, refresh it from the network and deliver
+         * again only if it changed. Falls back to the cached response when the refresh fails.
+         */
+        STALE_WHILE_REVALIDATE,
+        /**
+         * Go to the network for an expired cached response, but deliver it when the network
+         * is unreachable or the server fails
+         */
+        STALE_IF_ERROR
+    }
+
+    /**
+     * Headers set on this request, only touched by the thread building the request
+     */
+    protected Map<String, String> mRequestHeaders;
     //    protected ConcurrentHashMap<String, String> mRequestParams;
     private Response.Listener mListener;
 
@@ -123,6 +161,7 @@ public abstract class OkRequest<T> extends Request<T> {
     private boolean mMultipart;
     private boolean mForm;
     private RequestOutputStream mOutput;
+    private ReplayableBody.Builder mBodyBuilder;
     private int mBufferSize = 8192;
     private boolean mIgnoreCloseExceptions = true;
     private String mRequestUrl;
@@ -131,6 +170,41 @@ public abstract class OkRequest<T> extends Request<T> {
     private int mReadTimeoutMs = -1;
     private int mWriteTimeoutMs = -1;
 
+    private volatile OkRequestBatch mBatch;
+
+    private volatile boolean mCacheLookupStarted;
+
+    private ProgressReporter mUploadProgress;
+    private ProgressReporter mDownloadProgress;
+
+    private CacheMode mCacheMode = CacheMode.DEFAULT;
+    private long mMaxStaleMs = -1;
+    private RequestQueue mRequestQueue;
+
+    private CacheKeyNormalizer mCacheKeyNormalizer;
+    private String mCacheKey;
+
+    private boolean mFrozen;
+    private Map<String, String> mFrozenHeaders;
+    private ReplayableBody mFrozenBody;
+    // the body once built, and the bytes handed out by getBody()
+    private ReplayableBody mBuiltBody;
+    private byte[] mBodyBytes;
+
+    private EndpointStats mEndpointStats;
+    private long mQueuedAt;
+    private boolean mDeliveryRecorded;
+    private long mParseStart;
+
+    private boolean mAdaptiveTimeouts;
+    private long mExpectedResponseBytes;
+    private int mAdaptiveConnectTimeoutMs = -1;
+    private int mAdaptiveReadTimeoutMs = -1;
+    private int mAdaptiveWriteTimeoutMs = -1;
+
+    private long mHedgeDelayMs = -1;
+    private double mHedgePercentile;
+
     /**
      * construct method
      *
@@ -140,7 +214,7 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public OkRequest(int method, String url, Response.ErrorListener errorListener) {
         super(method, url, errorListener);
-        this.mRequestHeaders = new ConcurrentHashMap<String, String>();
+        this.mRequestHeaders = new HashMap<String, String>();
     }
 
     /**
@@ -153,7 +227,7 @@ public abstract class OkRequest<T> extends Request<T> {
     public OkRequest(int method, String url, Response.Listener<T> listener, Response.ErrorListener errorListener) {
         super(method, url, errorListener);
         this.mListener = listener;
-        this.mRequestHeaders = new ConcurrentHashMap<String, String>();
+        this.mRequestHeaders = new HashMap<String, String>();
     }
 
     /**
@@ -174,18 +248,30 @@ public abstract class OkRequest<T> extends Request<T> {
      * @return this request
      */
     public OkRequest<T> contentType(final String contentType) {
+        checkNotFrozen();
         this.mContentType = contentType;
         return this;
     }
 
     protected OkRequest<T> openOutput() {
+        checkNotFrozen();
         if (mOutput != null) {
             return this;
         }
         mOutput = new RequestOutputStream(CHARSET_UTF8);
+        mBodyBuilder = new ReplayableBody.Builder();
         return this;
     }
 
+    /**
+     * Append a file to the body by reference, it is read every time the body is sent
+     */
+    private void appendFile(final File file) throws IOException {
+        mBodyBuilder.add(mOutput.toByteArray());
+        mOutput.reset();
+        mBodyBuilder.add(file);
+    }
+
     protected OkRequest<T> startPart() throws IOException {
         openOutput();
         if (!mMultipart) {
@@ -338,11 +424,10 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public OkRequest<T> part(final String name, final String filename,
                              final String contentType, final File part) throws IOException {
-        final InputStream stream;
-        stream = new BufferedInputStream(new FileInputStream(part));
-//            incrementTotalSize(part.length());
-
-        return part(name, filename, contentType, stream);
+        startPart();
+        writePartHeader(name, filename, contentType);
+        appendFile(part);
+        return this;
     }
 
     /**
@@ -400,10 +485,9 @@ public abstract class OkRequest<T> extends Request<T> {
      * @return this request
      */
     public OkRequest<T> send(final File input) throws IOException {
-        final InputStream stream;
-
-        stream = new BufferedInputStream(new FileInputStream(input));
-        return send(stream);
+        openOutput();
+        appendFile(input);
+        return this;
     }
 
     /**
@@ -573,6 +657,7 @@ public abstract class OkRequest<T> extends Request<T> {
      * @return this request
      */
     public OkRequest<T> param(final String key, final String value) {
+        checkNotFrozen();
         StringBuilder urlBuilder = new StringBuilder(getUrl());
         if (getUrl().contains("?")) {
             urlBuilder.append("&");
@@ -583,6 +668,7 @@ public abstract class OkRequest<T> extends Request<T> {
         urlBuilder.append("=");
         urlBuilder.append(value);
         mRequestUrl = urlBuilder.toString();
+        mCacheKey = null;
         return this;
     }
 
@@ -619,7 +705,13 @@ public abstract class OkRequest<T> extends Request<T> {
      * @return this request
      */
     public OkRequest<T> header(final String name, final String value) {
-        mRequestHeaders.put(name, value);
+        checkNotFrozen();
+        if (value != null) {
+            mRequestHeaders.put(name, value);
+        } else {
+            mRequestHeaders.remove(name);
+        }
+        mCacheKey = null;
         return this;
     }
 
@@ -772,6 +864,7 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public void connectionTimeoutMs(int timeout)
     {
+        checkNotFrozen();
         mConnectTimeoutMs = timeout;
     }
 
@@ -782,6 +875,7 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public void readTimeoutMs(int timeout)
     {
+        checkNotFrozen();
         mReadTimeoutMs = timeout;
     }
 
@@ -792,6 +886,7 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public void writeTimeoutMs(int timeout)
     {
+        checkNotFrozen();
         mWriteTimeoutMs = timeout;
     }
 
@@ -801,6 +896,7 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public void fast()
     {
+        checkNotFrozen();
         mConnectTimeoutMs = 2500;
         mReadTimeoutMs = 2500;
         mWriteTimeoutMs = 2500;
@@ -812,6 +908,7 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public void longRead()
     {
+        checkNotFrozen();
         mConnectTimeoutMs = 2500;
         mReadTimeoutMs = 60000;
         mWriteTimeoutMs = 2500;
@@ -823,10 +920,269 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     public void longWrite()
     {
+        checkNotFrozen();
         mConnectTimeoutMs = 2500;
         mReadTimeoutMs = 2500;
         mWriteTimeoutMs = 60000;
     }
+
+    /**
+     * Derive timeouts from the round trip time and throughput recently observed by
+     * {@link OkNetwork} instead of fixed values, see {@link BandwidthEstimator}
+     * @return this request
+     */
+    public OkRequest<T> adaptiveTimeouts() {
+        return adaptiveTimeouts(DEFAULT_EXPECTED_RESPONSE_BYTES);
+    }
+
+    /**
+     * Derive timeouts from the round trip time and throughput recently observed by
+     * {@link OkNetwork} and the expected response size. Fixed timeouts are used until there
+     * is an estimate.
+     * @param expectedResponseBytes expected response body size
+     * @return this request
+     */
+    public OkRequest<T> adaptiveTimeouts(long expectedResponseBytes) {
+        checkNotFrozen();
+        mAdaptiveTimeouts = true;
+        mExpectedResponseBytes = expectedResponseBytes;
+        return this;
+    }
+
+    boolean isAdaptiveTimeouts() {
+        return mAdaptiveTimeouts;
+    }
+
+    long getExpectedResponseBytes() {
+        return mExpectedResponseBytes;
+    }
+
+    /**
+     * get the size of the body the stack sends, built by {@link #getBody()} unless it is
+     * streamed from the frozen body
+     */
+    long getBodyLength() {
+        if (mFrozenBody != null) {
+            return mFrozenBody.length();
+        }
+        try {
+            byte[] body = getBody();
+            return body != null ? body.length : 0;
+        } catch (AuthFailureError e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Set the timeouts of the next attempt, -1 to use the fixed ones
+     */
+    void setAdaptiveTimeouts(int connectTimeoutMs, int readTimeoutMs, int writeTimeoutMs) {
+        mAdaptiveConnectTimeoutMs = connectTimeoutMs;
+        mAdaptiveReadTimeoutMs = readTimeoutMs;
+        mAdaptiveWriteTimeoutMs = writeTimeoutMs;
+    }
+
+    int getAdaptiveConnectTimeoutMs() {
+        return mAdaptiveConnectTimeoutMs;
+    }
+
+    int getAdaptiveReadTimeoutMs() {
+        return mAdaptiveReadTimeoutMs;
+    }
+
+    int getAdaptiveWriteTimeoutMs() {
+        return mAdaptiveWriteTimeoutMs;
+    }
+
+    /**
+     * Hedge the request: if no response came back after delayMs, an identical second call is
+     * started and the first response wins. Only GET, HEAD and OPTIONS requests can be hedged;
+     * hedges are capped by the {@link HedgeBudget} of {@link OkHttpStack}.
+     *
+     * @param delayMs delay before the second call in ms
+     * @return this request
+     */
+    public OkRequest<T> hedge(long delayMs) {
+        return hedge(0, delayMs);
+    }
+
+    /**
+     * Hedge the request after the observed network latency percentile of its endpoint, see
+     * {@link EndpointRegistry}. The fixed delay is used until enough latencies were observed.
+     *
+     * @param percentile     latency percentile between 0 and 100, for example 95
+     * @param defaultDelayMs delay in ms while too few latencies were observed
+     * @return this request
+     */
+    public OkRequest<T> hedge(double percentile, long defaultDelayMs) {
+        checkNotFrozen();
+        int method = getMethod();
+        if (method != Method.GET && method != Method.HEAD && method != Method.OPTIONS) {
+            throw new IllegalStateException("Only GET, HEAD and OPTIONS requests can be hedged");
+        }
+        this.mHedgePercentile = percentile;
+        this.mHedgeDelayMs = defaultDelayMs;
+        return this;
+    }
+
+    /**
+     * Get the delay before a hedged call
+     * @return delay in ms, -1 if the request is not hedged
+     */
+    long getHedgeDelayMs() {
+        if (mHedgeDelayMs >= 0 && mHedgePercentile > 0 && mEndpointStats != null) {
+            long observed = mEndpointStats.getNetworkLatencyMs(mHedgePercentile, HEDGE_MIN_SAMPLES);
+            if (observed >= 0) {
+                return observed;
+            }
+        }
+        return mHedgeDelayMs;
+    }
+
+    /**
+     * Set cache mode
+     *
+     * @param cacheMode cache mode see {@link CacheMode}
+     * @return this request
+     */
+    public OkRequest<T> cacheMode(CacheMode cacheMode) {
+        return cacheMode(cacheMode, -1);
+    }
+
+    /**
+     * Set cache mode and how long after expiry a cached response may still be used
+     *
+     * @param cacheMode  cache mode see {@link CacheMode}
+     * @param maxStaleMs max time past expiry in ms, -1 for no limit
+     * @return this request
+     */
+    public OkRequest<T> cacheMode(CacheMode cacheMode, long maxStaleMs) {
+        this.mCacheMode = cacheMode;
+        this.mMaxStaleMs = maxStaleMs;
+        setShouldCache(cacheMode != CacheMode.NETWORK_ONLY);
+        return this;
+    }
+
+    /**
+     * Get cache mode
+     * @return cache mode
+     */
+    public CacheMode getCacheMode() {
+        return mCacheMode;
+    }
+
+    /**
+     * Get max time past expiry a cached response may be used
+     * @return max stale time in ms, -1 for no limit
+     */
+    public long getMaxStaleMs() {
+        return mMaxStaleMs;
+    }
+
+    /**
+     * Set cache key normalizer, see {@link CacheKeyNormalizer}. Requests without one get the
+     * normalizer of the {@link OkRequestQueue} they are added to.
+     *
+     * @param normalizer cache key normalizer
+     * @return this request
+     * @throws IllegalStateException if the request was added to the queue, its cache key can
+     *                               not change while it is in flight
+     */
+    public OkRequest<T> cacheKeyNormalizer(CacheKeyNormalizer normalizer) {
+        checkNotFrozen();
+        this.mCacheKeyNormalizer = normalizer;
+        this.mCacheKey = null;
+        return this;
+    }
+
+    /**
+     * Get cache key normalizer
+     * @return cache key normalizer, null if the plain url is used as cache key
+     */
+    public CacheKeyNormalizer getCacheKeyNormalizer() {
+        return mCacheKeyNormalizer;
+    }
+
+    /**
+     * Check if an expired cache entry is still fresh enough for this request
+     */
+    boolean isStaleUsable(Cache.Entry entry) {
+        return mMaxStaleMs < 0 || System.currentTimeMillis() - entry.ttl <= mMaxStaleMs;
+    }
+
+    /**
+     * Refresh the expiry of the cache entry from the headers of a response with the same body.
+     * The cached body array is passed on, so the cache rewrites only the metadata
+     */
+    void refreshCacheEntry(Map<String, String> headers) {
+        Cache.Entry entry = getCacheEntry();
+        if (entry == null || !shouldCache() || mRequestQueue == null) {
+            return;
+        }
+        Cache.Entry refreshed = HttpHeaderParser.parseCacheHeaders(new NetworkResponse(entry.data, headers));
+        if (refreshed != null) {
+            mRequestQueue.getCache().put(getCacheKey(), refreshed);
+        }
+    }
+
+    /**
+     * Set request body upload progress listener, called on the main thread at most every
+     * 100 ms and every 16 KB
+     *
+     * @param listener progress listener, null to remove
+     * @return this request
+     */
+    public OkRequest<T> setUploadProgressListener(ProgressListener listener) {
+        return setUploadProgressListener(listener, ProgressReporter.DEFAULT_MIN_INTERVAL_MS,
+                ProgressReporter.DEFAULT_MIN_BYTES);
+    }
+
+    /**
+     * Set request body upload progress listener
+     *
+     * @param listener      progress listener, null to remove
+     * @param minIntervalMs min time between two callbacks
+     * @param minBytes      min bytes between two callbacks
+     * @return this request
+     */
+    public OkRequest<T> setUploadProgressListener(ProgressListener listener, long minIntervalMs, long minBytes) {
+        mUploadProgress = listener != null ? new ProgressReporter(listener, minIntervalMs, minBytes) : null;
+        return this;
+    }
+
+    /**
+     * Set response body download progress listener, called on the main thread at most every
+     * 100 ms and every 16 KB
+     *
+     * @param listener progress listener, null to remove
+     * @return this request
+     */
+    public OkRequest<T> setDownloadProgressListener(ProgressListener listener) {
+        return setDownloadProgressListener(listener, ProgressReporter.DEFAULT_MIN_INTERVAL_MS,
+                ProgressReporter.DEFAULT_MIN_BYTES);
+    }
+
+    /**
+     * Set response body download progress listener
+     *
+     * @param listener      progress listener, null to remove
+     * @param minIntervalMs min time between two callbacks
+     * @param minBytes      min bytes between two callbacks
+     * @return this request
+     */
+    public OkRequest<T> setDownloadProgressListener(ProgressListener listener, long minIntervalMs, long minBytes) {
+        mDownloadProgress = listener != null ? new ProgressReporter(listener, minIntervalMs, minBytes) : null;
+        return this;
+    }
+
+    ProgressReporter getUploadProgress() {
+        return mUploadProgress;
+    }
+
+    ProgressReporter getDownloadProgress() {
+        return mDownloadProgress;
+    }
+
     /**
      * Copy from input stream to output stream
      *
@@ -866,12 +1222,57 @@ public abstract class OkRequest<T> extends Request<T> {
         }.call();
     }
 
+    /**
+     * Freeze headers, url, body and timeouts when the request is enqueued. Headers are
+     * merged with the given defaults, headers set on the request win. After this the request
+     * can be read from any thread without synchronization and is the same for every retry.
+     *
+     * @param defaultHeaders default headers, can be null
+     */
+    void freeze(Map<String, String> defaultHeaders) {
+        if (mFrozen) {
+            return;
+        }
+        Map<String, String> headers = defaultHeaders != null
+                ? new HashMap<String, String>(defaultHeaders) : new HashMap<String, String>();
+        headers.putAll(mRequestHeaders);
+        mFrozenHeaders = Collections.unmodifiableMap(headers);
+        mFrozenBody = buildBody();
+        // resolve the url once, it can not change anymore
+        getUrl();
+        mCacheKey = null;
+        mFrozen = true;
+    }
+
+    /**
+     * Check if the request was frozen by {@link OkRequestQueue}
+     *
+     * @return true if headers, url, body and timeouts can not be changed anymore
+     */
+    public boolean isFrozen() {
+        return mFrozen;
+    }
+
+    private void checkNotFrozen() {
+        if (mFrozen) {
+            throw new IllegalStateException("Request can not be changed after it was added to the queue");
+        }
+    }
+
     /**
      * get request header
      */
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
         Map<String, String> headers = super.getHeaders();
+        if (mFrozen) {
+            if (headers.isEmpty()) {
+                return mFrozenHeaders;
+            }
+            Map<String, String> merged = new HashMap<String, String>(headers);
+            merged.putAll(mFrozenHeaders);
+            return merged;
+        }
         if (!mRequestHeaders.isEmpty()) {
             if (headers.isEmpty()) {
                 return mRequestHeaders;
@@ -890,6 +1291,75 @@ public abstract class OkRequest<T> extends Request<T> {
         if (this.mListener != null) {
             this.mListener.onResponse(t);
         }
+        notifyBatch(true);
+        recordDelivery(true);
+    }
+
+    /**
+     * set the batch this request was submitted with
+     *
+     * @param batch batch see {@link OkRequestBatch}
+     */
+    void setBatch(OkRequestBatch batch) {
+        this.mBatch = batch;
+    }
+
+    /**
+     * Set by {@link OkRequestQueue} when it started a {@link ParallelLookupCache} lookup
+     */
+    void setCacheLookupStarted(boolean started) {
+        this.mCacheLookupStarted = started;
+    }
+
+    boolean isCacheLookupStarted() {
+        return mCacheLookupStarted;
+    }
+
+    /**
+     * Notify the batch only once, intermediate responses are delivered more than once.
+     */
+    private void notifyBatch(boolean success) {
+        OkRequestBatch batch = mBatch;
+        if (batch != null) {
+            mBatch = null;
+            batch.onRequestDelivered(success);
+        }
+    }
+
+    /**
+     * Called by {@link OkRequestQueue} when the request is finished, after its delivery or
+     * without one when it was canceled
+     */
+    void onFinished() {
+        OkRequestBatch batch = mBatch;
+        if (batch != null) {
+            mBatch = null;
+            batch.onRequestCanceled();
+        }
+    }
+
+    /**
+     * set the endpoint stats this request is recorded to, called when it is enqueued
+     *
+     * @param stats endpoint stats, see {@link EndpointRegistry}
+     */
+    void setEndpointStats(EndpointStats stats) {
+        this.mEndpointStats = stats;
+        this.mQueuedAt = SystemClock.elapsedRealtime();
+    }
+
+    EndpointStats getEndpointStats() {
+        return mEndpointStats;
+    }
+
+    /**
+     * Record only the first delivery, intermediate responses are delivered more than once.
+     */
+    private void recordDelivery(boolean success) {
+        if (mEndpointStats != null && !mDeliveryRecorded) {
+            mDeliveryRecorded = true;
+            mEndpointStats.recordDelivery(SystemClock.elapsedRealtime() - mQueuedAt, success);
+        }
     }
 
     /**
@@ -932,33 +1402,68 @@ public abstract class OkRequest<T> extends Request<T> {
      */
     @Override
     public byte[] getBody() throws AuthFailureError {
-        if (mOutput == null) {
+        ReplayableBody body = mFrozen ? mFrozenBody : buildBody();
+        if (body == null) {
             return super.getBody();
         }
+        // built once, retries send the very same bytes
+        if (mBodyBytes == null) {
+            mBodyBytes = body.toByteArray();
+        }
+        return mBodyBytes;
+    }
+
+    /**
+     * get the body built with the send and part methods, see {@link ReplayableBody}
+     *
+     * @return body, null if the request is not enqueued yet or {@link #getBody()} builds it
+     */
+    ReplayableBody getReplayableBody() {
+        return mFrozenBody;
+    }
+
+    /**
+     * Finish the body written so far, once
+     *
+     * @return body, null if none was written
+     */
+    private ReplayableBody buildBody() {
+        if (mOutput != null) {
+            mBuiltBody = closeBody();
+            mBodyBytes = null;
+        }
+        return mBuiltBody;
+    }
+
+    /**
+     * Finish the body written so far and return it
+     */
+    private ReplayableBody closeBody() {
         try {
             if (mMultipart) {
 
                 mOutput.write(CRLF + "--" + BOUNDARY + "--" + CRLF);
             }
-            return mOutput.toByteArray();
         } catch (IOException e) {
             e.printStackTrace();
-            return mOutput.toByteArray();
         } finally {
             try {
                 mOutput.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            mOutput = null;
         }
-
+        ReplayableBody body = mBodyBuilder.add(mOutput.toByteArray()).build();
+        mOutput = null;
+        mBodyBuilder = null;
+        return body;
     }
 
 
     @Override
     public OkRequest<T> setRequestQueue(RequestQueue requestQueue) {
         super.setRequestQueue(requestQueue);
+        this.mRequestQueue = requestQueue;
         return this;
     }
 
@@ -1050,16 +1555,41 @@ public abstract class OkRequest<T> extends Request<T> {
     @Override
     public void addMarker(String tag) {
         super.addMarker(tag);
+        if ("cache-hit".equals(tag) && mRequestQueue instanceof OkRequestQueue) {
+            ((OkRequestQueue) mRequestQueue).onCacheHit(this);
+        } else if ("network-http-complete".equals(tag)) {
+            mParseStart = SystemClock.elapsedRealtime();
+        } else if ("network-parse-complete".equals(tag) && mParseStart > 0 && mRequestQueue instanceof OkRequestQueue) {
+            ((OkRequestQueue) mRequestQueue).onParsed(this, SystemClock.elapsedRealtime() - mParseStart);
+            mParseStart = 0;
+        }
     }
 
     @Override
     public String getCacheKey() {
-        return super.getCacheKey();
+        if (mCacheKeyNormalizer == null) {
+            return super.getCacheKey();
+        }
+        if (mCacheKey == null) {
+            try {
+                mCacheKey = mCacheKeyNormalizer.normalize(getUrl(), getHeaders());
+            } catch (AuthFailureError e) {
+                return super.getCacheKey();
+            }
+        }
+        return mCacheKey;
     }
 
     @Override
     public Request<?> setCacheEntry(Cache.Entry entry) {
-        return super.setCacheEntry(entry);
+        super.setCacheEntry(entry);
+        // The cache dispatcher attaches expired entries before sending the request to the
+        // network; in stale-while-revalidate mode they are delivered right away.
+        if (mCacheMode == CacheMode.STALE_WHILE_REVALIDATE && entry != null && entry.isExpired()
+                && isStaleUsable(entry) && mRequestQueue instanceof OkRequestQueue) {
+            ((OkRequestQueue) mRequestQueue).deliverStale(this, entry);
+        }
+        return this;
     }
 
     @Override
@@ -1105,6 +1635,8 @@ public abstract class OkRequest<T> extends Request<T> {
     @Override
     public void deliverError(VolleyError error) {
         super.deliverError(error);
+        notifyBatch(false);
+        recordDelivery(false);
     }
 
     @Override
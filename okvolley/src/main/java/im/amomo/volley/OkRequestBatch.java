@@ -0,0 +1,151 @@
+package im.amomo.volley;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A group of {@link OkRequest}s submitted together through
+ * {@link OkRequestQueue#addBatch(java.util.Collection, OkRequestBatch.Listener)}.
+ * <p/>
+ * Every request still delivers its own response or error to its own listeners. Once all of
+ * them have been delivered or canceled one by one, the batch listener is notified a single
+ * time. The batch is also a single cancel handle for all of its requests.
+ */
+public class OkRequestBatch {
+
+    /**
+     * Callback interface for the combined completion of a batch
+     */
+    public interface Listener {
+        /**
+         * Called when every request of the batch has delivered a response or an error, or
+         * was canceled on its own. Called on the delivery thread, on a network thread if the
+         * last request was dropped there after being canceled, and on the calling thread
+         * for an empty batch. Not called if the batch was canceled.
+         */
+        public void onBatchComplete(OkRequestBatch batch);
+    }
+
+    private final List<OkRequest<?>> mRequests;
+
+    private final Listener mListener;
+
+    private int mPending;
+
+    private int mFailed;
+
+    private int mCanceledRequests;
+
+    private boolean mCanceled;
+
+    OkRequestBatch(Collection<? extends OkRequest<?>> requests, Listener listener) {
+        mRequests = Collections.unmodifiableList(new ArrayList<OkRequest<?>>(requests));
+        mListener = listener;
+        mPending = mRequests.size();
+    }
+
+    /**
+     * get requests of this batch
+     *
+     * @return unmodifiable list of requests in submission order
+     */
+    public List<OkRequest<?>> getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * get number of requests in this batch
+     *
+     * @return batch size
+     */
+    public int size() {
+        return mRequests.size();
+    }
+
+    /**
+     * get number of requests which have not delivered yet
+     *
+     * @return pending request count
+     */
+    public synchronized int getPendingCount() {
+        return mPending;
+    }
+
+    /**
+     * get number of requests which delivered an error
+     *
+     * @return failed request count
+     */
+    public synchronized int getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * cancel every request of this batch
+     */
+    public void cancel() {
+        synchronized (this) {
+            mCanceled = true;
+        }
+        for (OkRequest<?> request : mRequests) {
+            request.cancel();
+        }
+    }
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * get number of requests which were canceled without delivering
+     *
+     * @return canceled request count
+     */
+    public synchronized int getCanceledCount() {
+        return mCanceledRequests;
+    }
+
+    /**
+     * Called once per request when it delivers its first response or error.
+     */
+    void onRequestDelivered(boolean success) {
+        boolean complete;
+        synchronized (this) {
+            mPending--;
+            if (!success) {
+                mFailed++;
+            }
+            complete = mPending == 0 && !mCanceled;
+        }
+        if (complete && mListener != null) {
+            mListener.onBatchComplete(this);
+        }
+    }
+
+    /**
+     * Called once per request which finished without delivering, Volley delivers nothing
+     * for canceled requests.
+     */
+    void onRequestCanceled() {
+        boolean complete;
+        synchronized (this) {
+            mPending--;
+            mCanceledRequests++;
+            complete = mPending == 0 && !mCanceled;
+        }
+        if (complete && mListener != null) {
+            mListener.onBatchComplete(this);
+        }
+    }
+
+    /**
+     * Notify the listener right away if the batch has no requests
+     */
+    void completeIfEmpty() {
+        if (mRequests.isEmpty() && mListener != null) {
+            mListener.onBatchComplete(this);
+        }
+    }
+}
@@ -1,10 +1,23 @@
 package im.amomo.volley;
 
 import com.android.volley.Cache;
+import com.android.volley.ExecutorDelivery;
 import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ResponseDelivery;
+import com.android.volley.VolleyLog;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -12,31 +25,336 @@ import java.util.Map;
  */
 public class OkRequestQueue extends RequestQueue
 {
-	private Map<String, String> mRequestHeaders = null;
+	/**
+	 * Number of network request dispatcher threads to start.
+	 */
+	public static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
+
+	private volatile Map<String, String> mRequestHeaders = null;
+
+	private BatchingDeliveryExecutor mBatchingExecutor;
+
+	private final ResponseDelivery mDelivery;
+
+	private volatile CacheKeyNormalizer mCacheKeyNormalizer;
+
+	private volatile CacheAccessListener mCacheAccessListener;
+
+	private volatile EndpointRegistry mEndpointRegistry;
+
+	private NetworkSlots mNetworkSlots;
+
+	/**
+	 * Callback interface for cacheable requests going through the queue
+	 */
+	public interface CacheAccessListener
+	{
+		/**
+		 * Called when a cacheable request is added, on the calling thread
+		 */
+		public void onRequestAdded(OkRequest<?> request);
+
+		/**
+		 * Called when a request is answered from a fresh cache entry, on the cache thread
+		 */
+		public void onCacheHit(OkRequest<?> request);
+	}
 
 	public OkRequestQueue(Cache cache, Network network)
 	{
-		super(cache, network);
+		this(cache, network, DEFAULT_NETWORK_THREAD_POOL_SIZE,
+			 new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+	}
+
+	public OkRequestQueue(Cache cache, Network network, Map<String, String> requestHeaders)
+	{
+		this(cache, network);
+		mRequestHeaders = copyHeaders(requestHeaders);
+	}
+
+	/**
+	 * Pass a {@link ParallelLookupCache} as cache to look entries up on several threads
+	 * instead of only on the cache dispatcher.
+	 */
+	public OkRequestQueue(Cache cache, Network network, int threadPoolSize, ResponseDelivery delivery)
+	{
+		super(cache, network, threadPoolSize, delivery);
+		mDelivery = delivery;
+		addRequestFinishedListener(mFinishedListener);
+	}
+
+	/**
+	 * Creates the queue with ioThreads network dispatcher threads doing network I/O and
+	 * parseThreads more which only parse, so a slow parse does not hold up the network, see
+	 * {@link NetworkSlots}. parseThreads is usually the number of CPU cores. No thread is
+	 * reserved for I/O, while ioThreads + parseThreads responses are parsed no request is started.
+	 */
+	public OkRequestQueue(Cache cache, OkNetwork network, int ioThreads, int parseThreads, ResponseDelivery delivery)
+	{
+		this(cache, network, ioThreads + parseThreads, delivery);
+		mNetworkSlots = new NetworkSlots(ioThreads);
+		network.setNetworkSlots(mNetworkSlots);
+	}
+
+	/**
+	 * Creates the queue with batched response delivery, see {@link BatchingDeliveryExecutor}.
+	 */
+	public OkRequestQueue(Cache cache, Network network, Map<String, String> requestHeaders,
+						  BatchingDeliveryExecutor deliveryExecutor)
+	{
+		this(cache, network, DEFAULT_NETWORK_THREAD_POOL_SIZE, new ExecutorDelivery(deliveryExecutor));
+		mRequestHeaders = copyHeaders(requestHeaders);
+		mBatchingExecutor = deliveryExecutor;
 	}
 
-	public OkRequestQueue(Cache cache, Network network, Map<String, String> mRequestHeaders)
+	/**
+	 * Stops the dispatchers and closes the cache if it can be closed, which stops the writer
+	 * thread of a {@link im.amomo.volley.toolbox.WriteBehindCache}
+	 */
+	@Override
+	public void stop()
+	{
+		super.stop();
+		Cache cache = getCache();
+		if (cache instanceof Closeable)
+		{
+			try
+			{
+				((Closeable) cache).close();
+			}
+			catch (IOException e)
+			{
+				VolleyLog.e(e, "Could not close the cache");
+			}
+		}
+	}
+
+	/**
+	 * get batching delivery executor
+	 *
+	 * @return executor used for batched delivery, null if responses are delivered one by one
+	 */
+	public BatchingDeliveryExecutor getBatchingExecutor()
 	{
-		super(cache, network);
+		return mBatchingExecutor;
 	}
 
 	public OkRequestQueue updateRequestHeaders(Map<String, String> requestHeaders)
 	{
-		mRequestHeaders = requestHeaders;
+		mRequestHeaders = copyHeaders(requestHeaders);
 		return this;
 	}
 
+	/**
+	 * get the headers added to every request
+	 *
+	 * @return default request headers, null if none
+	 */
+	public Map<String, String> getRequestHeaders()
+	{
+		return mRequestHeaders;
+	}
+
+	private static Map<String, String> copyHeaders(Map<String, String> requestHeaders)
+	{
+		return requestHeaders != null
+			? Collections.unmodifiableMap(new HashMap<String, String>(requestHeaders)) : null;
+	}
+
 	@Override
 	public <T> Request<T> add(Request<T> request)
 	{
-		if (request instanceof OkRequest && mRequestHeaders != null)
+		synchronized (this)
+		{
+			if (request instanceof OkRequest)
+			{
+				prepare((OkRequest<?>) request, mRequestHeaders);
+			}
+			return super.add(request);
+		}
+	}
+
+	/**
+	 * Apply queue defaults to a request before it is enqueued
+	 */
+	private void prepare(OkRequest<?> request, Map<String, String> requestHeaders)
+	{
+		// the normalizer goes in before the cache key is fixed by freezing
+		if (!request.isFrozen() && request.getCacheKeyNormalizer() == null)
+		{
+			request.cacheKeyNormalizer(mCacheKeyNormalizer);
+		}
+		request.freeze(requestHeaders);
+		EndpointRegistry registry = mEndpointRegistry;
+		if (registry != null)
+		{
+			request.setEndpointStats(registry.get(request.getMethod(), request.getUrl()));
+		}
+		CacheAccessListener listener = mCacheAccessListener;
+		if (listener != null && request.shouldCache())
+		{
+			listener.onRequestAdded(request);
+		}
+		Cache cache = getCache();
+		if (cache instanceof ParallelLookupCache && request.shouldCache() && !request.isCanceled())
+		{
+			// read the entry now, the single cache dispatcher picks it up later
+			((ParallelLookupCache) cache).prefetch(request.getCacheKey());
+			request.setCacheLookupStarted(true);
+		}
+	}
+
+	void onParsed(OkRequest<?> request, long parseMs)
+	{
+		NetworkSlots slots = mNetworkSlots;
+		if (slots != null)
+		{
+			slots.recordParse(parseMs);
+		}
+	}
+
+	/**
+	 * get the network slots with their per stage timing
+	 *
+	 * @return slots, null if network I/O and parsing share the dispatcher threads
+	 */
+	public NetworkSlots getNetworkSlots()
+	{
+		return mNetworkSlots;
+	}
+
+	/**
+	 * Canceled requests are finished without a delivery, let their batch count them and drop
+	 * the cache lookup they started
+	 */
+	private final RequestFinishedListener<Object> mFinishedListener = new RequestFinishedListener<Object>()
+	{
+		@Override
+		public void onRequestFinished(Request<Object> request)
+		{
+			if (request instanceof OkRequest)
+			{
+				OkRequest<?> okRequest = (OkRequest<?>) request;
+				okRequest.onFinished();
+				if (okRequest.isCacheLookupStarted())
+				{
+					((ParallelLookupCache) getCache()).release(okRequest.getCacheKey());
+				}
+			}
+		}
+	};
+
+	void onCacheHit(OkRequest<?> request)
+	{
+		CacheAccessListener listener = mCacheAccessListener;
+		if (listener != null)
+		{
+			listener.onCacheHit(request);
+		}
+	}
+
+	/**
+	 * set listener for cacheable requests, see {@link CacheAccessListener}
+	 *
+	 * @param listener listener, null to remove
+	 * @return this queue
+	 */
+	public OkRequestQueue setCacheAccessListener(CacheAccessListener listener)
+	{
+		mCacheAccessListener = listener;
+		return this;
+	}
+
+	/**
+	 * set registry OkRequests are recorded to, see {@link EndpointRegistry}
+	 *
+	 * @param registry endpoint registry, null to stop recording
+	 * @return this queue
+	 */
+	public OkRequestQueue setEndpointRegistry(EndpointRegistry registry)
+	{
+		mEndpointRegistry = registry;
+		return this;
+	}
+
+	public EndpointRegistry getEndpointRegistry()
+	{
+		return mEndpointRegistry;
+	}
+
+	/**
+	 * set cache key normalizer for requests which do not set their own, none by default
+	 *
+	 * @param normalizer cache key normalizer, null to use plain urls as cache keys
+	 * @return this queue
+	 */
+	public OkRequestQueue setCacheKeyNormalizer(CacheKeyNormalizer normalizer)
+	{
+		mCacheKeyNormalizer = normalizer;
+		return this;
+	}
+
+	/**
+	 * get cache key normalizer for requests which do not set their own
+	 *
+	 * @return cache key normalizer, null if plain urls are used as cache keys
+	 */
+	public CacheKeyNormalizer getCacheKeyNormalizer()
+	{
+		return mCacheKeyNormalizer;
+	}
+
+	/**
+	 * Delivers an expired cache entry as an intermediate response, the request keeps going to
+	 * the network. Called on the cache dispatcher thread.
+	 */
+	<T> void deliverStale(OkRequest<T> request, Cache.Entry entry)
+	{
+		Response<T> response = request.parseNetworkResponse(new NetworkResponse(entry.data, entry.responseHeaders));
+		if (!response.isSuccess())
+		{
+			return;
+		}
+		request.addMarker("cache-hit-stale");
+		response.intermediate = true;
+		mDelivery.postResponse(request, response);
+	}
+
+	/**
+	 * Adds all requests to the dispatch queue as one batch.
+	 *
+	 * @param requests requests to add, in submission order
+	 * @return batch handle, see {@link OkRequestBatch}
+	 */
+	public OkRequestBatch addBatch(Collection<? extends OkRequest<?>> requests)
+	{
+		return addBatch(requests, null);
+	}
+
+	/**
+	 * Adds all requests to the dispatch queue as one batch. Requests are enqueued atomically
+	 * with respect to other {@link #add(Request)} calls and share a single default headers map.
+	 * Responses are still delivered one by one to every request's own listeners; the batch
+	 * listener is notified once after the last of them.
+	 *
+	 * @param requests requests to add, in submission order
+	 * @param listener combined completion listener, can be null
+	 * @return batch handle, see {@link OkRequestBatch}
+	 */
+	public OkRequestBatch addBatch(Collection<? extends OkRequest<?>> requests, OkRequestBatch.Listener listener)
+	{
+		OkRequestBatch batch = new OkRequestBatch(requests, listener);
+		Map<String, String> requestHeaders = mRequestHeaders;
+		synchronized (this)
 		{
-			((OkRequest)request).headers(mRequestHeaders);
+			for (OkRequest<?> request : batch.getRequests())
+			{
+				request.setBatch(batch);
+				prepare(request, requestHeaders);
+				super.add(request);
+			}
 		}
-		return super.add(request);
+		batch.completeIfEmpty();
+		return batch;
 	}
 }
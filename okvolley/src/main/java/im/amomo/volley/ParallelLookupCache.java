@@ -0,0 +1,323 @@
+package im.amomo.volley;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Cache} decorator which looks entries up on several worker threads ahead of Volley's
+ * single cache dispatcher.
+ * <p/>
+ * {@link OkRequestQueue} starts a lookup for every cacheable request when it is added. By
+ * the time the cache dispatcher gets to the request, the entry is usually read already, so
+ * disk reads of many requests overlap instead of queueing behind each other. Lookups of
+ * the same key are shared. Writes to a key drop its pending lookup, so a lookup never
+ * returns an entry older than the last write. The queue's de-duplication of identical
+ * requests is not affected, requests still pass the cache dispatcher one by one.
+ * <p/>
+ * Lookups wait for {@link #initialize()}, which the cache dispatcher calls when the queue is
+ * started. A lookup is dropped when the cache dispatcher picks it up, when the last request
+ * sharing it finishes or is canceled, see {@link #release(String)}, or when it is older than
+ * 30 seconds.
+ */
+public class ParallelLookupCache implements Cache, Closeable {
+
+    private static final int MAX_PENDING_LOOKUPS = 256;
+
+    private static final long STALE_LOOKUP_MS = 30000;
+
+    private final Cache mDelegate;
+
+    private final ExecutorService mExecutor;
+
+    private final ConcurrentHashMap<String, Lookup> mLookups = new ConcurrentHashMap<String, Lookup>();
+
+    private final LatencyHistogram mQueueWait = new LatencyHistogram();
+
+    private final LatencyHistogram mDispatcherWait = new LatencyHistogram();
+
+    private final AtomicLong mLookupCount = new AtomicLong();
+
+    private final AtomicLong mSharedCount = new AtomicLong();
+
+    private final AtomicLong mDirectCount = new AtomicLong();
+
+    private final AtomicLong mLastSweep = new AtomicLong();
+
+    /**
+     * Released once the wrapped cache is initialized, requests may be added before the queue
+     * is started and an uninitialized cache answers every lookup with null
+     */
+    private final CountDownLatch mInitialized = new CountDownLatch(1);
+
+    /**
+     * @param delegate cache looked up
+     * @param workers  number of lookup threads
+     */
+    public ParallelLookupCache(Cache delegate, int workers) {
+        mDelegate = delegate;
+        mExecutor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "OkVolley-CacheLookup-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start looking up a key, called by {@link OkRequestQueue} when a request is added
+     *
+     * @param key cache key
+     */
+    public void prefetch(String key) {
+        long now = SystemClock.elapsedRealtime();
+        long lastSweep = mLastSweep.get();
+        if (now - lastSweep > STALE_LOOKUP_MS && mLastSweep.compareAndSet(lastSweep, now)) {
+            dropStaleLookups(now);
+        }
+        while (true) {
+            Lookup shared = mLookups.get(key);
+            if (shared != null) {
+                if (shared.acquire()) {
+                    mSharedCount.incrementAndGet();
+                    return;
+                }
+                // released by its last request meanwhile
+                mLookups.remove(key, shared);
+                continue;
+            }
+            if (mLookups.size() >= MAX_PENDING_LOOKUPS && !dropStaleLookups(now)) {
+                // the dispatcher reads it itself
+                return;
+            }
+            Lookup lookup = new Lookup(key);
+            if (mLookups.putIfAbsent(key, lookup) == null) {
+                mLookupCount.incrementAndGet();
+                mExecutor.execute(lookup);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop the lookup of a key once no request shares it anymore, called by
+     * {@link OkRequestQueue} when a request is finished or canceled. If the cache dispatcher
+     * already picked the lookup up, a later lookup of the key may be dropped early, its
+     * request then reads the entry on the dispatcher.
+     *
+     * @param key cache key
+     */
+    public void release(String key) {
+        Lookup lookup = mLookups.get(key);
+        if (lookup != null && lookup.release()) {
+            mLookups.remove(key, lookup);
+        }
+    }
+
+    @Override
+    public Entry get(String key) {
+        Lookup lookup = mLookups.remove(key);
+        if (lookup == null) {
+            mDirectCount.incrementAndGet();
+            return mDelegate.get(key);
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            VolleyLog.e(e.getCause(), "Cache lookup failed for %s", key);
+            return null;
+        } finally {
+            mDispatcherWait.record(SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        mLookups.remove(key);
+        mDelegate.put(key, entry);
+        // a lookup started during the write may have read the old entry
+        mLookups.remove(key);
+    }
+
+    @Override
+    public void initialize() {
+        try {
+            mDelegate.initialize();
+        } finally {
+            mInitialized.countDown();
+        }
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        mLookups.remove(key);
+        mDelegate.invalidate(key, fullExpire);
+        mLookups.remove(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        mLookups.remove(key);
+        mDelegate.remove(key);
+        mLookups.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        mLookups.clear();
+        mDelegate.clear();
+        mLookups.clear();
+    }
+
+    /**
+     * Close the wrapped cache if it can be closed, the lookup threads keep running
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (mDelegate instanceof Closeable) {
+            ((Closeable) mDelegate).close();
+        }
+    }
+
+    /**
+     * get time lookups waited for a worker thread
+     *
+     * @return histogram in milliseconds
+     */
+    public LatencyHistogram getQueueWait() {
+        return mQueueWait;
+    }
+
+    /**
+     * get time the cache dispatcher waited for a started lookup to finish
+     *
+     * @return histogram in milliseconds
+     */
+    public LatencyHistogram getDispatcherWait() {
+        return mDispatcherWait;
+    }
+
+    public long getLookupCount() {
+        return mLookupCount.get();
+    }
+
+    /**
+     * get number of requests which joined a lookup of the same key
+     *
+     * @return shared lookup count
+     */
+    public long getSharedCount() {
+        return mSharedCount.get();
+    }
+
+    /**
+     * get number of reads the cache dispatcher did itself, without a started lookup
+     *
+     * @return direct read count
+     */
+    public long getDirectCount() {
+        return mDirectCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "lookups=%d, shared=%d, direct=%d, queue wait p50/p99=%d/%dms, dispatcher wait p50/p99=%d/%dms",
+                getLookupCount(), getSharedCount(), getDirectCount(),
+                mQueueWait.getValueAtPercentile(50), mQueueWait.getValueAtPercentile(99),
+                mDispatcherWait.getValueAtPercentile(50), mDispatcherWait.getValueAtPercentile(99));
+    }
+
+    /**
+     * Drop old finished lookups nobody picked up
+     */
+    private boolean dropStaleLookups(long now) {
+        boolean dropped = false;
+        Iterator<Lookup> iterator = mLookups.values().iterator();
+        while (iterator.hasNext()) {
+            Lookup lookup = iterator.next();
+            if (lookup.isDone() && now - lookup.mQueuedAt > STALE_LOOKUP_MS) {
+                iterator.remove();
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    private class Lookup extends FutureTask<Entry> {
+
+        final long mQueuedAt = SystemClock.elapsedRealtime();
+
+        /**
+         * Requests sharing the lookup, 0 once released
+         */
+        private int mRequests = 1;
+
+        Lookup(final String key) {
+            super(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    mInitialized.await();
+                    return mDelegate.get(key);
+                }
+            });
+        }
+
+        synchronized boolean acquire() {
+            if (mRequests == 0) {
+                return false;
+            }
+            mRequests++;
+            return true;
+        }
+
+        /**
+         * @return true if no request shares the lookup anymore
+         */
+        synchronized boolean release() {
+            if (mRequests > 0) {
+                mRequests--;
+            }
+            return mRequests == 0;
+        }
+
+        @Override
+        public void run() {
+            mQueueWait.record(SystemClock.elapsedRealtime() - mQueuedAt);
+            super.run();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package im.amomo.volley;
+
+/**
+ * Callback interface for transfer progress. Called on the main thread at a bounded rate.
+ */
+public interface ProgressListener {
+    /**
+     * @param bytes bytes transferred so far
+     * @param total total bytes to transfer, -1 if unknown
+     */
+    public void onProgress(long bytes, long total);
+}
@@ -0,0 +1,93 @@
+package im.amomo.volley;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Forwards transfer progress to a {@link ProgressListener} on the main thread, dropping updates
+ * which come sooner than {@code minIntervalMs} or smaller than {@code minBytes} after the last
+ * forwarded one. The final update of a transfer is always forwarded.
+ */
+class ProgressReporter {
+
+    static final long DEFAULT_MIN_INTERVAL_MS = 100;
+
+    static final long DEFAULT_MIN_BYTES = 16 * 1024;
+
+    private static Handler sMainHandler;
+
+    private final ProgressListener mListener;
+
+    private final long mMinIntervalMs;
+
+    private final long mMinBytes;
+
+    private long mLastTime;
+
+    private long mLastBytes = -1;
+
+    ProgressReporter(ProgressListener listener) {
+        this(listener, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MIN_BYTES);
+    }
+
+    ProgressReporter(ProgressListener listener, long minIntervalMs, long minBytes) {
+        mListener = listener;
+        mMinIntervalMs = minIntervalMs;
+        mMinBytes = minBytes;
+    }
+
+    /**
+     * Start a new transfer, e.g. a retry which starts over from zero
+     */
+    void reset() {
+        mLastTime = 0;
+        mLastBytes = -1;
+    }
+
+    /**
+     * Report progress, called from the transferring thread
+     */
+    void report(long bytes, long total) {
+        boolean done = total >= 0 && bytes >= total;
+        long now = SystemClock.elapsedRealtime();
+        if (!done && mLastBytes >= 0
+                && (now - mLastTime < mMinIntervalMs || bytes - mLastBytes < mMinBytes)) {
+            return;
+        }
+        if (bytes == mLastBytes) {
+            return;
+        }
+        mLastTime = now;
+        mLastBytes = bytes;
+        post(bytes, total);
+    }
+
+    /**
+     * Report the end of a transfer, always forwarded unless it was already reported
+     */
+    void finish(long bytes, long total) {
+        if (bytes == mLastBytes) {
+            return;
+        }
+        mLastTime = SystemClock.elapsedRealtime();
+        mLastBytes = bytes;
+        post(bytes, total);
+    }
+
+    private void post(final long bytes, final long total) {
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(bytes, total);
+            }
+        });
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return sMainHandler;
+    }
+}
@@ -0,0 +1,74 @@
+package im.amomo.volley;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+/**
+ * A {@link RequestBody} which counts the bytes written to the connection and reports them to
+ * a {@link ProgressReporter}.
+ */
+class ProgressRequestBody extends RequestBody {
+
+    private static final long REPORT_STEP = 8192;
+
+    private final RequestBody mDelegate;
+
+    private final ProgressReporter mProgress;
+
+    ProgressRequestBody(RequestBody delegate, ProgressReporter progress) {
+        mDelegate = delegate;
+        mProgress = progress;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mDelegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return mDelegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        final long total = contentLength();
+        mProgress.reset();
+        CountingSink counting = new CountingSink(sink, total);
+        BufferedSink buffered = Okio.buffer(counting);
+        mDelegate.writeTo(buffered);
+        buffered.flush();
+        mProgress.finish(counting.mBytes, total);
+    }
+
+    private class CountingSink extends ForwardingSink {
+
+        private final long mTotal;
+
+        private long mBytes;
+
+        CountingSink(BufferedSink delegate, long total) {
+            super(delegate);
+            mTotal = total;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            // forward in steps, a whole in-memory body arrives here as a single write
+            while (byteCount > 0) {
+                long step = Math.min(byteCount, REPORT_STEP);
+                super.write(source, step);
+                byteCount -= step;
+                mBytes += step;
+                mProgress.report(mBytes, mTotal);
+            }
+        }
+    }
+}
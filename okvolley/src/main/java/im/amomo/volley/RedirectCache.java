@@ -0,0 +1,203 @@
+package im.amomo.volley;
+
+import com.android.volley.VolleyLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remembers permanent redirects (301 and 308) so later requests to the old url go straight
+ * to the new one, see {@link OkHttpStack#setRedirectCache(RedirectCache)}.
+ * <p/>
+ * The least recently used redirects are dropped beyond the max size. With a file the map
+ * survives restarts; it is written again on a background thread whenever a new redirect is
+ * learned.
+ */
+public class RedirectCache {
+
+    private static final int MAX_CHAIN = 5;
+
+    private final File mFile;
+
+    private final LinkedHashMap<String, String> mRedirects;
+
+    private final ExecutorService mWriter;
+
+    private boolean mSavePending;
+
+    /**
+     * @param maxSize max number of redirects kept
+     */
+    public RedirectCache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize max number of redirects kept
+     * @param file    file the redirects are persisted to, can be null
+     */
+    public RedirectCache(final int maxSize, File file) {
+        mFile = file;
+        mWriter = file != null ? Executors.newSingleThreadExecutor() : null;
+        mRedirects = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+        if (file != null) {
+            load();
+        }
+    }
+
+    /**
+     * get the url a request should go to, following known redirect chains
+     *
+     * @param url requested url
+     * @return final url, the requested one if no redirect is known
+     */
+    public synchronized String resolve(String url) {
+        String resolved = url;
+        for (int i = 0; i < MAX_CHAIN; i++) {
+            String target = mRedirects.get(resolved);
+            if (target == null || target.equals(url)) {
+                break;
+            }
+            resolved = target;
+        }
+        return resolved;
+    }
+
+    /**
+     * Remember a permanent redirect
+     *
+     * @param from old url
+     * @param to   new url
+     */
+    public void put(String from, String to) {
+        synchronized (this) {
+            if (to.equals(mRedirects.get(from))) {
+                return;
+            }
+            mRedirects.put(from, to);
+        }
+        if (mFile != null) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Forget a redirect, for example when the new url fails
+     *
+     * @param from old url
+     */
+    public void remove(String from) {
+        synchronized (this) {
+            if (mRedirects.remove(from) == null) {
+                return;
+            }
+        }
+        if (mFile != null) {
+            scheduleSave();
+        }
+    }
+
+    public synchronized int size() {
+        return mRedirects.size();
+    }
+
+    private synchronized void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), OkRequest.CHARSET_UTF8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    mRedirects.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "Could not read redirects from %s", mFile);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the map on the writer thread, once for all changes made until the write starts
+     */
+    private void scheduleSave() {
+        synchronized (this) {
+            if (mSavePending) {
+                return;
+            }
+            mSavePending = true;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private void save() {
+        List<Map.Entry<String, String>> redirects;
+        synchronized (this) {
+            mSavePending = false;
+            redirects = new ArrayList<Map.Entry<String, String>>(mRedirects.size());
+            for (Map.Entry<String, String> redirect : mRedirects.entrySet()) {
+                redirects.add(new AbstractMap.SimpleImmutableEntry<String, String>(redirect));
+            }
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temp), OkRequest.CHARSET_UTF8);
+            for (Map.Entry<String, String> redirect : redirects) {
+                writer.write(redirect.getKey());
+                writer.write('\t');
+                writer.write(redirect.getValue());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(mFile)) {
+                VolleyLog.e("Could not write redirects to %s", mFile);
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "Could not write redirects to %s", mFile);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package im.amomo.volley;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link OkStack} which serves exchanges recorded by {@link TrafficRecorder} without any
+ * network, waiting the recorded latency multiplied by a scale factor. Requests are matched by
+ * method and url; several recordings of the same request are served round robin.
+ */
+public class ReplayStack implements OkStack {
+
+    private final Map<String, List<TrafficRecorder.Record>> mRecords = new HashMap<String, List<TrafficRecorder.Record>>();
+
+    private final Map<String, Integer> mNext = new HashMap<String, Integer>();
+
+    private final float mLatencyScale;
+
+    /**
+     * @param file         recorded file
+     * @param latencyScale recorded latency multiplier, 0 to answer at once
+     * @throws IOException
+     */
+    public ReplayStack(File file, float latencyScale) throws IOException {
+        this(TrafficRecorder.read(file), latencyScale);
+    }
+
+    /**
+     * @param records      recorded exchanges
+     * @param latencyScale recorded latency multiplier, 0 to answer at once
+     */
+    public ReplayStack(List<TrafficRecorder.Record> records, float latencyScale) {
+        mLatencyScale = latencyScale;
+        for (TrafficRecorder.Record record : records) {
+            String key = key(record.method, record.url);
+            List<TrafficRecorder.Record> list = mRecords.get(key);
+            if (list == null) {
+                list = new ArrayList<TrafficRecorder.Record>();
+                mRecords.put(key, list);
+            }
+            list.add(record);
+        }
+    }
+
+    @Override
+    public Response performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        String method = OkHttpStack.methodName(request);
+        TrafficRecorder.Record record = next(key(method, request.getUrl()));
+        if (record == null) {
+            throw new IOException("No recorded response for " + method + " " + request.getUrl());
+        }
+
+        long delay = (long) (record.latencyMs * mLatencyScale);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Replay interrupted");
+            }
+        }
+
+        String contentType = record.headers.get(OkRequest.HEADER_CONTENT_TYPE);
+        return new Response.Builder()
+                .request(new com.squareup.okhttp.Request.Builder().url(request.getUrl()).build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(record.code)
+                .message("Replayed")
+                .headers(record.headers)
+                .body(ResponseBody.create(contentType != null ? MediaType.parse(contentType) : null, record.body))
+                .build();
+    }
+
+    private synchronized TrafficRecorder.Record next(String key) {
+        List<TrafficRecorder.Record> list = mRecords.get(key);
+        if (list == null) {
+            return null;
+        }
+        Integer next = mNext.get(key);
+        int index = next != null ? next : 0;
+        mNext.put(key, (index + 1) % list.size());
+        return list.get(index);
+    }
+
+    private static String key(String method, String url) {
+        return method + " " + url;
+    }
+}
@@ -0,0 +1,160 @@
+package im.amomo.volley;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Immutable request body which can be written any number of times, so every retry and hedge
+ * of an {@link OkRequest} sends the same bytes without building the body again.
+ * <p/>
+ * The body is a sequence of in-memory segments and file segments. Files are not read into
+ * memory; they are opened again on every write and must not change while the request is in
+ * flight.
+ */
+public final class ReplayableBody {
+
+    private final List<Object> mSegments;
+
+    private final long mLength;
+
+    private ReplayableBody(List<Object> segments, long length) {
+        mSegments = Collections.unmodifiableList(segments);
+        mLength = length;
+    }
+
+    /**
+     * get body length
+     *
+     * @return length in bytes
+     */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * Write the whole body
+     *
+     * @param sink sink to write to
+     * @throws IOException
+     */
+    public void writeTo(BufferedSink sink) throws IOException {
+        for (Object segment : mSegments) {
+            if (segment instanceof byte[]) {
+                sink.write((byte[]) segment);
+            } else {
+                FileSegment file = (FileSegment) segment;
+                Source source = Okio.source(file.file);
+                try {
+                    // throws if the file was truncated since the body was built
+                    sink.write(source, file.length);
+                } finally {
+                    source.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the body into memory, files included
+     *
+     * @return body bytes
+     */
+    public byte[] toByteArray() {
+        if (mSegments.size() == 1 && mSegments.get(0) instanceof byte[]) {
+            return ((byte[]) mSegments.get(0)).clone();
+        }
+        Buffer buffer = new Buffer();
+        try {
+            writeTo(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Request body file is not readable", e);
+        }
+        return buffer.readByteArray();
+    }
+
+    RequestBody toRequestBody(final MediaType contentType) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return mLength;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                ReplayableBody.this.writeTo(sink);
+            }
+        };
+    }
+
+    private static class FileSegment {
+        final File file;
+        final long length;
+
+        FileSegment(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Builds a {@link ReplayableBody} from bytes and files
+     */
+    public static class Builder {
+
+        private final List<Object> mSegments = new ArrayList<Object>();
+
+        private long mLength;
+
+        /**
+         * Append bytes, the array is not copied and must not be changed afterwards
+         *
+         * @param bytes bytes
+         * @return this builder
+         */
+        public Builder add(byte[] bytes) {
+            if (bytes.length > 0) {
+                mSegments.add(bytes);
+                mLength += bytes.length;
+            }
+            return this;
+        }
+
+        /**
+         * Append the contents of a file, read when the body is written
+         *
+         * @param file file
+         * @return this builder
+         * @throws FileNotFoundException if the file does not exist
+         */
+        public Builder add(File file) throws FileNotFoundException {
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            long length = file.length();
+            mSegments.add(new FileSegment(file, length));
+            mLength += length;
+            return this;
+        }
+
+        public ReplayableBody build() {
+            return new ReplayableBody(new ArrayList<Object>(mSegments), mLength);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package im.amomo.volley;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Response;
+
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * TLS session cache persisted to a directory, so the first connections after a restart
+ * resume a session instead of doing a full handshake, see
+ * {@link OkHttpStack#setTlsSessionCache(TlsSessionCache)}.
+ * <p/>
+ * Sessions are stored by the platform {@link SSLSessionCache}. Files older than the max age
+ * and the oldest files beyond the max count are deleted when the cache is opened. Certificate
+ * pinning is not affected, pins are checked by OkHttp after every handshake, resumed or not.
+ */
+public class TlsSessionCache {
+
+    private static final int DEFAULT_HANDSHAKE_TIMEOUT_MS = 60000;
+
+    private static final int MAX_TRACKED_SESSIONS = 1024;
+
+    private final File mDirectory;
+
+    private final SSLSessionCache mSessionCache;
+
+    private final int mHandshakeTimeoutMs;
+
+    private final long mProcessStart = System.currentTimeMillis();
+
+    private final Map<Connection, Boolean> mConnections = new WeakHashMap<Connection, Boolean>();
+
+    private final Set<String> mSessionIds = new HashSet<String>();
+
+    private long mHandshakes;
+
+    private long mResumed;
+
+    /**
+     * @param directory directory sessions are persisted to
+     * @param maxFiles  max number of persisted sessions
+     * @param maxAgeMs  max age of a persisted session
+     * @throws IOException if the directory can not be used
+     */
+    public TlsSessionCache(File directory, int maxFiles, long maxAgeMs) throws IOException {
+        this(directory, maxFiles, maxAgeMs, DEFAULT_HANDSHAKE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param directory          directory sessions are persisted to
+     * @param maxFiles           max number of persisted sessions
+     * @param maxAgeMs           max age of a persisted session
+     * @param handshakeTimeoutMs TLS handshake timeout
+     * @throws IOException if the directory can not be used
+     */
+    public TlsSessionCache(File directory, int maxFiles, long maxAgeMs, int handshakeTimeoutMs) throws IOException {
+        mDirectory = directory;
+        mHandshakeTimeoutMs = handshakeTimeoutMs;
+        prune(maxFiles, maxAgeMs);
+        mSessionCache = new SSLSessionCache(directory);
+    }
+
+    /**
+     * get a socket factory storing sessions in this cache
+     *
+     * @param trustAllCerts true to skip certificate and hostname checks
+     * @return socket factory
+     */
+    public SSLSocketFactory getSocketFactory(boolean trustAllCerts) {
+        return trustAllCerts
+                ? SSLCertificateSocketFactory.getInsecure(mHandshakeTimeoutMs, mSessionCache)
+                : SSLCertificateSocketFactory.getDefault(mHandshakeTimeoutMs, mSessionCache);
+    }
+
+    /**
+     * get the network interceptor counting full and resumed handshakes
+     *
+     * @return interceptor
+     */
+    Interceptor getInterceptor() {
+        return mInterceptor;
+    }
+
+    /**
+     * get number of new TLS connections, full and resumed handshakes
+     *
+     * @return handshake count
+     */
+    public synchronized long getHandshakeCount() {
+        return mHandshakes;
+    }
+
+    /**
+     * get number of new TLS connections which resumed a session of this process or a
+     * persisted one
+     *
+     * @return resumed handshake count
+     */
+    public synchronized long getResumedCount() {
+        return mResumed;
+    }
+
+    /**
+     * get share of new TLS connections which resumed a session
+     *
+     * @return resumption rate between 0 and 1
+     */
+    public synchronized float getResumptionRate() {
+        return mHandshakes == 0 ? 0 : (float) mResumed / mHandshakes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "handshakes=%d, resumed=%d, resumption rate=%.3f",
+                mHandshakes, mResumed, getResumptionRate());
+    }
+
+    /**
+     * A session is resumed if this process saw its id before, or if it was created before
+     * the process started and so came from the persisted cache.
+     */
+    private synchronized void onConnection(Connection connection) {
+        if (connection == null || mConnections.put(connection, Boolean.TRUE) != null) {
+            return;
+        }
+        Socket socket = connection.getSocket();
+        if (!(socket instanceof SSLSocket)) {
+            return;
+        }
+        SSLSession session = ((SSLSocket) socket).getSession();
+        mHandshakes++;
+        if (mSessionIds.size() >= MAX_TRACKED_SESSIONS) {
+            mSessionIds.clear();
+        }
+        String id = hex(session.getId());
+        boolean resumed = id.length() > 0 && !mSessionIds.add(id);
+        if (resumed || session.getCreationTime() < mProcessStart) {
+            mResumed++;
+        }
+    }
+
+    private final Interceptor mInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            onConnection(chain.connection());
+            return chain.proceed(chain.request());
+        }
+    };
+
+    private void prune(int maxFiles, long maxAgeMs) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - maxAgeMs;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length; i++) {
+            if (i >= maxFiles || files[i].lastModified() < oldest) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,226 @@
+package im.amomo.volley;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.toolbox.Authenticator;
+import com.squareup.okhttp.HttpUrl;
+
+import android.os.SystemClock;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the current auth token of an {@link Authenticator} and refreshes it at most once
+ * at a time, see {@link OkNetwork#setAuthenticator(Authenticator, String...)}.
+ * <p/>
+ * The first request which gets a 401 invalidates its token and fetches a new one. Requests
+ * failing meanwhile with the same token wait for that refresh instead of starting their
+ * own, requests failing with a token which was already replaced get the new one at once.
+ * The first token is fetched the same way, once for all requests which need it.
+ * <p/>
+ * Tokens are only sent to the hosts the refresher was created for.
+ */
+public class TokenRefresher {
+
+    private static final long MAX_WAIT_MS = 30000;
+
+    private final Authenticator mAuthenticator;
+
+    private final Set<String> mHosts = new HashSet<String>();
+
+    private String mToken;
+
+    private Flight mFlight;
+
+    private long mRefreshes;
+
+    private long mFailures;
+
+    private long mWaiters;
+
+    private long mTotalRefreshMs;
+
+    private long mMaxRefreshMs;
+
+    /**
+     * @param authenticator authenticator
+     * @param hosts         hosts to send the token to
+     */
+    public TokenRefresher(Authenticator authenticator, String... hosts) {
+        if (hosts.length == 0) {
+            throw new IllegalArgumentException("no hosts to send the token to");
+        }
+        mAuthenticator = authenticator;
+        for (String host : hosts) {
+            mHosts.add(host.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * Check whether a request to an url is signed
+     *
+     * @param url request url
+     * @return true if the host of the url is one of the hosts of this refresher
+     */
+    public boolean isAllowed(String url) {
+        HttpUrl parsed = url != null ? HttpUrl.parse(url) : null;
+        return parsed != null && mHosts.contains(parsed.host().toLowerCase(Locale.US));
+    }
+
+    /**
+     * get the token to sign a request with
+     *
+     * @return token, can be null
+     * @throws AuthFailureError
+     */
+    String getToken() throws AuthFailureError {
+        Flight flight;
+        boolean leader = false;
+        synchronized (this) {
+            if (mToken != null) {
+                return mToken;
+            }
+            if (mFlight == null) {
+                mFlight = new Flight();
+                leader = true;
+            }
+            flight = mFlight;
+        }
+        if (leader) {
+            fetch(flight, null);
+        }
+        return flight.await();
+    }
+
+    /**
+     * Replace a token the server rejected, shared with all concurrent callers
+     *
+     * @param staleToken rejected token
+     * @return new token
+     * @throws AuthFailureError if the refresh failed
+     */
+    String refresh(String staleToken) throws AuthFailureError {
+        Flight flight;
+        boolean leader = false;
+        synchronized (this) {
+            if (mToken != null && !mToken.equals(staleToken)) {
+                mWaiters++;
+                return mToken;
+            }
+            if (mFlight == null) {
+                mFlight = new Flight();
+                mToken = null;
+                leader = true;
+            } else {
+                mWaiters++;
+            }
+            flight = mFlight;
+        }
+        if (leader) {
+            fetch(flight, staleToken);
+        }
+        String token = flight.await();
+        if (token == null) {
+            throw new AuthFailureError("Auth token refresh returned no token");
+        }
+        return token;
+    }
+
+    /**
+     * Fetch a token for everybody waiting on the flight
+     *
+     * @param staleToken token to invalidate first, null for the first token
+     */
+    private void fetch(Flight flight, String staleToken) {
+        long start = SystemClock.elapsedRealtime();
+        String token = null;
+        AuthFailureError error = null;
+        try {
+            if (staleToken != null) {
+                mAuthenticator.invalidateAuthToken(staleToken);
+            }
+            token = mAuthenticator.getAuthToken();
+        } catch (AuthFailureError e) {
+            error = e;
+        } finally {
+            long duration = SystemClock.elapsedRealtime() - start;
+            synchronized (this) {
+                mToken = token;
+                mFlight = null;
+                if (staleToken != null) {
+                    mRefreshes++;
+                    if (token == null) {
+                        mFailures++;
+                    }
+                    mTotalRefreshMs += duration;
+                    mMaxRefreshMs = Math.max(mMaxRefreshMs, duration);
+                }
+            }
+            flight.complete(token, error);
+        }
+    }
+
+    public synchronized long getRefreshCount() {
+        return mRefreshes;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailures;
+    }
+
+    /**
+     * get number of rejected requests which reused a refresh instead of starting one
+     *
+     * @return waiter count
+     */
+    public synchronized long getWaiterCount() {
+        return mWaiters;
+    }
+
+    public synchronized long getAverageRefreshMs() {
+        return mRefreshes == 0 ? 0 : mTotalRefreshMs / mRefreshes;
+    }
+
+    public synchronized long getMaxRefreshMs() {
+        return mMaxRefreshMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "refreshes=%d, failures=%d, waiters=%d, avg=%dms, max=%dms",
+                mRefreshes, mFailures, mWaiters, getAverageRefreshMs(), mMaxRefreshMs);
+    }
+
+    private static class Flight {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private volatile String mToken;
+
+        private volatile AuthFailureError mError;
+
+        void complete(String token, AuthFailureError error) {
+            mToken = token;
+            mError = error;
+            mDone.countDown();
+        }
+
+        String await() throws AuthFailureError {
+            try {
+                if (!mDone.await(MAX_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new AuthFailureError("Timed out waiting for the auth token refresh");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AuthFailureError("Interrupted waiting for the auth token refresh");
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return mToken;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package im.amomo.volley;
+
+import com.android.volley.VolleyLog;
+import com.squareup.okhttp.Headers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Records request/response pairs seen by {@link OkHttpStack} to a compact binary file which
+ * {@link ReplayStack} serves back.
+ * <p/>
+ * The file starts with a magic number and version, followed by one record per exchange:
+ * method, url, status code, latency, response headers and response body.
+ */
+public class TrafficRecorder implements Closeable {
+
+    private static final int MAGIC = 0x4f4b5452; // OKTR
+
+    private static final int VERSION = 1;
+
+    /**
+     * One recorded exchange
+     */
+    public static class Record {
+        public final String method;
+        public final String url;
+        public final int code;
+        public final long latencyMs;
+        public final Headers headers;
+        public final byte[] body;
+
+        public Record(String method, String url, int code, long latencyMs, Headers headers, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.code = code;
+            this.latencyMs = latencyMs;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    private final DataOutputStream mOut;
+
+    private final File mDirectory;
+
+    private int mCount;
+
+    /**
+     * @param file file to record to, replaced if it exists
+     * @throws IOException
+     */
+    public TrafficRecorder(File file) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        mDirectory = file.getAbsoluteFile().getParentFile();
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+    }
+
+    /**
+     * Append an exchange to the file
+     *
+     * @param record exchange
+     * @throws IOException
+     */
+    public synchronized void record(Record record) throws IOException {
+        writeHead(record);
+        mOut.writeInt(record.body.length);
+        mOut.write(record.body);
+        mCount++;
+    }
+
+    /**
+     * Record an exchange while its body is read. The body is spooled to a temporary file next
+     * to the recording and appended once it was read to the end; a body which is closed early
+     * is not recorded. Recording errors are logged, they never fail the read.
+     *
+     * @param head exchange without body
+     * @param body response body source
+     * @return source which reads the body and records it
+     */
+    public Source tee(Record head, Source body) {
+        return new TeeSource(head, body);
+    }
+
+    private synchronized void record(Record head, File body) throws IOException {
+        writeHead(head);
+        mOut.writeInt((int) body.length());
+        InputStream in = new FileInputStream(body);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                mOut.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        mCount++;
+    }
+
+    private void writeHead(Record record) throws IOException {
+        mOut.writeUTF(record.method);
+        mOut.writeUTF(record.url);
+        mOut.writeShort(record.code);
+        mOut.writeInt((int) Math.min(Integer.MAX_VALUE, record.latencyMs));
+        int size = record.headers.size();
+        mOut.writeShort(size);
+        for (int i = 0; i < size; i++) {
+            mOut.writeUTF(record.headers.name(i));
+            mOut.writeUTF(record.headers.value(i));
+        }
+    }
+
+    /**
+     * get number of recorded exchanges
+     *
+     * @return record count
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Read all records of a file
+     *
+     * @param file recorded file
+     * @return records in recording order
+     * @throws IOException
+     */
+    public static List<Record> read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a traffic recording: " + file);
+            }
+            List<Record> records = new ArrayList<Record>();
+            while (true) {
+                String method;
+                try {
+                    method = in.readUTF();
+                } catch (EOFException e) {
+                    return records;
+                }
+                String url = in.readUTF();
+                int code = in.readUnsignedShort();
+                long latencyMs = in.readInt();
+                int size = in.readUnsignedShort();
+                Headers.Builder headers = new Headers.Builder();
+                for (int i = 0; i < size; i++) {
+                    headers.add(in.readUTF(), in.readUTF());
+                }
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                records.add(new Record(method, url, code, latencyMs, headers.build(), body));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies everything read from a body to a spool file
+     */
+    private class TeeSource extends ForwardingSource {
+        private final Record mHead;
+        private File mSpool;
+        private BufferedSink mSink;
+        private boolean mDone;
+
+        TeeSource(Record head, Source body) {
+            super(body);
+            mHead = head;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (mDone) {
+                return read;
+            }
+            try {
+                if (mSink == null) {
+                    mSpool = File.createTempFile("okvolley", ".body", mDirectory);
+                    mSink = Okio.buffer(Okio.sink(mSpool));
+                }
+                if (read == -1) {
+                    mSink.close();
+                    mSink = null;
+                    mDone = true;
+                    record(mHead, mSpool);
+                    discard();
+                } else {
+                    sink.copyTo(mSink.buffer(), sink.size() - read, read);
+                    mSink.emitCompleteSegments();
+                }
+            } catch (IOException e) {
+                VolleyLog.e(e, "error on recording %s", mHead.url);
+                mDone = true;
+                discard();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (!mDone) {
+                mDone = true;
+                discard();
+            }
+        }
+
+        private void discard() {
+            if (mSink != null) {
+                try {
+                    mSink.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+                mSink = null;
+            }
+            if (mSpool != null) {
+                mSpool.delete();
+                mSpool = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,511 @@
+package im.amomo.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Disk cache which keeps the metadata of an entry (headers, ttls, dates) apart from its body,
+ * so a revalidated entry is refreshed with a tiny metadata write.
+ * <p/>
+ * {@link #updateMetadata(String, Cache.Entry)} rewrites only the metadata file. {@link #put}
+ * does the same when the entry still carries the very body array this cache returned from
+ * {@link #get(String)}, which is what Volley puts back after a 304 Not Modified. Every file
+ * is written to a temporary file first and renamed, so readers never see half an entry.
+ * A new body gets a file of its own, named after its version, and the metadata naming it is
+ * written last; after a crash in between the old metadata still points to the old body, the
+ * orphaned new body is deleted by {@link #initialize()}. The least recently used entries are
+ * removed when the bodies exceed the max size.
+ * <p/>
+ * The index of entries is kept in memory, so use a single instance per directory and share it
+ * between request queues. It is initialized once, by the first queue started.
+ */
+public class OkDiskCache implements Cache {
+
+    private static final int DEFAULT_MAX_SIZE_BYTES = 5 * 1024 * 1024;
+
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    private static final int META_MAGIC = 0x4f4b4d32; // OKM2
+
+    private static final String META_SUFFIX = ".meta";
+
+    private static final String BODY_SUFFIX = ".body";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final File mRootDirectory;
+
+    private final long mMaxSizeBytes;
+
+    private final LinkedHashMap<String, Metadata> mEntries = new LinkedHashMap<String, Metadata>(16, 0.75f, true);
+
+    /**
+     * Body arrays handed out by {@link #get(String)}, by identity, with the body they were read from
+     */
+    private final Map<byte[], Metadata> mLoadedBodies = new WeakHashMap<byte[], Metadata>();
+
+    /**
+     * Key owning each file name, two keys can hash to the same name
+     */
+    private final Map<String, String> mFileOwners = new HashMap<String, String>();
+
+    private boolean mInitialized;
+
+    private long mNextBodyVersion;
+
+    private long mTotalSize;
+
+    private long mMetadataWrites;
+
+    private long mBodyWrites;
+
+    public OkDiskCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    /**
+     * @param rootDirectory cache directory
+     * @param maxSizeBytes  max size of all bodies
+     */
+    public OkDiskCache(File rootDirectory, long maxSizeBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    @Override
+    public synchronized void initialize() {
+        if (mInitialized) {
+            // shared by several queues
+            return;
+        }
+        mInitialized = true;
+        if (!mRootDirectory.exists()) {
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+            return;
+        }
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> bodies = new HashSet<String>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(BODY_SUFFIX)) {
+                continue;
+            }
+            if (!name.endsWith(META_SUFFIX)) {
+                // temporary files and files of other cache formats
+                file.delete();
+                continue;
+            }
+            Metadata metadata = readMetadata(file);
+            File body = metadata != null
+                    ? bodyFile(name.substring(0, name.length() - META_SUFFIX.length()), metadata.bodyVersion) : null;
+            if (metadata == null || body.length() != metadata.size) {
+                file.delete();
+                continue;
+            }
+            bodies.add(body.getName());
+            mNextBodyVersion = Math.max(mNextBodyVersion, metadata.bodyVersion);
+            putMetadata(metadata);
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(BODY_SUFFIX) && !bodies.contains(file.getName())) {
+                // written without its metadata, or replaced by a newer body
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized Entry get(String key) {
+        Metadata metadata = mEntries.get(key);
+        if (metadata == null) {
+            return null;
+        }
+        File body = bodyFile(fileName(key), metadata.bodyVersion);
+        if (body.length() != metadata.size) {
+            VolleyLog.d("%s: size %d, expected %d", body.getAbsolutePath(), body.length(), metadata.size);
+            remove(key);
+            return null;
+        }
+        try {
+            byte[] data = readFully(body, metadata.size);
+            mLoadedBodies.put(data, metadata);
+            return metadata.toEntry(data);
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", body.getAbsolutePath(), e.toString());
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        if (entry.data != null && isCurrentBody(key, mLoadedBodies.get(entry.data)) && updateMetadata(key, entry)) {
+            return;
+        }
+        byte[] data = entry.data != null ? entry.data : new byte[0];
+        pruneIfNeeded(data.length);
+        String name = fileName(key);
+        Metadata metadata = new Metadata(key, entry, data.length);
+        metadata.bodyVersion = ++mNextBodyVersion;
+        File body = bodyFile(name, metadata.bodyVersion);
+        try {
+            writeAtomically(body, data, null);
+            // the metadata naming the new body replaces the old one at once
+            writeAtomically(metaFile(name), null, metadata);
+        } catch (IOException e) {
+            VolleyLog.d("Could not write cache entry %s: %s", key, e.toString());
+            body.delete();
+            remove(key);
+            return;
+        }
+        mBodyWrites++;
+        putMetadata(metadata);
+    }
+
+    /**
+     * Replace headers, ttls and dates of an existing entry without rewriting its body. The
+     * data of the given entry is ignored.
+     *
+     * @param key   cache key
+     * @param entry entry holding the new metadata
+     * @return true if the entry existed and was updated
+     */
+    public synchronized boolean updateMetadata(String key, Entry entry) {
+        Metadata current = mEntries.get(key);
+        if (current == null) {
+            return false;
+        }
+        Metadata metadata = new Metadata(key, entry, current.size);
+        metadata.bodyVersion = current.bodyVersion;
+        try {
+            writeAtomically(metaFile(fileName(key)), null, metadata);
+        } catch (IOException e) {
+            VolleyLog.d("Could not update cache entry %s: %s", key, e.toString());
+            return false;
+        }
+        mMetadataWrites++;
+        mEntries.put(key, metadata);
+        return true;
+    }
+
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        Metadata current = mEntries.get(key);
+        if (current != null) {
+            Entry entry = current.toEntry(null);
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            updateMetadata(key, entry);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        String name = fileName(key);
+        String owner = mFileOwners.get(name);
+        if (owner != null && !owner.equals(key)) {
+            // the files belong to another key with the same name
+            return;
+        }
+        metaFile(name).delete();
+        Metadata removed = mEntries.remove(key);
+        if (removed != null) {
+            bodyFile(name, removed.bodyVersion).delete();
+            mTotalSize -= removed.size;
+            mFileOwners.remove(name);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mEntries.clear();
+        mLoadedBodies.clear();
+        mFileOwners.clear();
+        mTotalSize = 0;
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * get number of writes which only touched metadata
+     *
+     * @return metadata-only write count
+     */
+    public synchronized long getMetadataWriteCount() {
+        return mMetadataWrites;
+    }
+
+    /**
+     * get number of writes which stored a whole body
+     *
+     * @return full write count
+     */
+    public synchronized long getBodyWriteCount() {
+        return mBodyWrites;
+    }
+
+    /**
+     * Check if a body read earlier is still the stored body of the key
+     */
+    private boolean isCurrentBody(String key, Metadata loaded) {
+        Metadata current = mEntries.get(key);
+        return loaded != null && current != null && loaded.key.equals(key)
+                && loaded.bodyVersion == current.bodyVersion;
+    }
+
+    private void putMetadata(Metadata metadata) {
+        String name = fileName(metadata.key);
+        String owner = mFileOwners.put(name, metadata.key);
+        if (owner != null && !owner.equals(metadata.key)) {
+            // the metadata of the other key was overwritten
+            Metadata overwritten = mEntries.remove(owner);
+            if (overwritten != null) {
+                bodyFile(name, overwritten.bodyVersion).delete();
+                mTotalSize -= overwritten.size;
+            }
+        }
+        Metadata previous = mEntries.put(metadata.key, metadata);
+        if (previous != null) {
+            if (previous.bodyVersion != metadata.bodyVersion) {
+                bodyFile(name, previous.bodyVersion).delete();
+            }
+            mTotalSize -= previous.size;
+        }
+        mTotalSize += metadata.size;
+    }
+
+    private void pruneIfNeeded(long neededSpace) {
+        if (mTotalSize + neededSpace < mMaxSizeBytes) {
+            return;
+        }
+        Iterator<Map.Entry<String, Metadata>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext() && mTotalSize + neededSpace >= mMaxSizeBytes * HYSTERESIS_FACTOR) {
+            Metadata metadata = iterator.next().getValue();
+            String name = fileName(metadata.key);
+            metaFile(name).delete();
+            bodyFile(name, metadata.bodyVersion).delete();
+            mTotalSize -= metadata.size;
+            mFileOwners.remove(name);
+            iterator.remove();
+        }
+    }
+
+    private File metaFile(String name) {
+        return new File(mRootDirectory, name + META_SUFFIX);
+    }
+
+    private File bodyFile(String name, long bodyVersion) {
+        return new File(mRootDirectory, name + "." + bodyVersion + BODY_SUFFIX);
+    }
+
+    /**
+     * Same file naming as Volley's DiskBasedCache, two halves of the key's hash code
+     */
+    private static String fileName(String key) {
+        int firstHalfLength = key.length() / 2;
+        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
+        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
+        return localFilename;
+    }
+
+    private static void writeAtomically(File file, byte[] data, Metadata metadata) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            if (metadata != null) {
+                metadata.writeTo(new DataOutputStream(out));
+            } else {
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    private static Metadata readMetadata(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return Metadata.readFrom(in);
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static byte[] readFully(File file, long size) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) size];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Expected " + size + " bytes, read " + offset);
+                }
+                offset += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Everything of an entry except its body
+     */
+    private static class Metadata {
+        final String key;
+        final String etag;
+        final long serverDate;
+        final long lastModified;
+        final long ttl;
+        final long softTtl;
+        final Map<String, String> responseHeaders;
+        final long size;
+        /**
+         * Changes whenever the body is written, names the body file
+         */
+        long bodyVersion;
+
+        Metadata(String key, Entry entry, long size) {
+            this(key, entry.etag, entry.serverDate, entry.lastModified, entry.ttl, entry.softTtl,
+                    entry.responseHeaders != null ? entry.responseHeaders : Collections.<String, String>emptyMap(),
+                    size);
+        }
+
+        Metadata(String key, String etag, long serverDate, long lastModified, long ttl, long softTtl,
+                 Map<String, String> responseHeaders, long size) {
+            this.key = key;
+            this.etag = etag;
+            this.serverDate = serverDate;
+            this.lastModified = lastModified;
+            this.ttl = ttl;
+            this.softTtl = softTtl;
+            Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            headers.putAll(responseHeaders);
+            this.responseHeaders = Collections.unmodifiableMap(headers);
+            this.size = size;
+        }
+
+        Entry toEntry(byte[] data) {
+            Entry entry = new Entry();
+            entry.data = data;
+            entry.etag = etag;
+            entry.serverDate = serverDate;
+            entry.lastModified = lastModified;
+            entry.ttl = ttl;
+            entry.softTtl = softTtl;
+            // every reader gets its own copy, nobody can change the cached headers in place
+            Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            headers.putAll(responseHeaders);
+            entry.responseHeaders = headers;
+            return entry;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(META_MAGIC);
+            writeString(out, key);
+            writeString(out, etag != null ? etag : "");
+            out.writeLong(serverDate);
+            out.writeLong(lastModified);
+            out.writeLong(ttl);
+            out.writeLong(softTtl);
+            out.writeInt(responseHeaders.size());
+            for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                writeString(out, header.getKey());
+                writeString(out, header.getValue() != null ? header.getValue() : "");
+            }
+            out.writeLong(size);
+            out.writeLong(bodyVersion);
+            out.flush();
+        }
+
+        static Metadata readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != META_MAGIC) {
+                throw new IOException("Not a cache metadata file");
+            }
+            String key = readString(in);
+            String etag = readString(in);
+            long serverDate = in.readLong();
+            long lastModified = in.readLong();
+            long ttl = in.readLong();
+            long softTtl = in.readLong();
+            int count = in.readInt();
+            Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < count; i++) {
+                headers.put(readString(in), readString(in));
+            }
+            long size = in.readLong();
+            Metadata metadata = new Metadata(key, etag.length() > 0 ? etag : null, serverDate, lastModified, ttl,
+                    softTtl, headers, size);
+            metadata.bodyVersion = in.readLong();
+            return metadata;
+        }
+
+        /**
+         * Length-prefixed UTF-8, unlike writeUTF not limited to 64 KB
+         */
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Bad string length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+}
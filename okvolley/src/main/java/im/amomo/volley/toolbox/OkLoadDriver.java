@@ -0,0 +1,183 @@
+package im.amomo.volley.toolbox;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.NoCache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import im.amomo.volley.OkNetwork;
+import im.amomo.volley.OkRequest;
+import im.amomo.volley.OkRequestQueue;
+import im.amomo.volley.OkStack;
+
+/**
+ * Drives a large number of requests through an {@link OkRequestQueue} and reports throughput
+ * and latency percentiles. Combined with a {@link im.amomo.volley.ReplayStack} it load-tests
+ * the client side without any network.
+ * <p/>
+ * {@link #run(List, int, int)} blocks until every request finished, so it must not be called
+ * on the thread responses are delivered on.
+ */
+public class OkLoadDriver {
+
+    private final OkRequestQueue mRequestQueue;
+
+    public OkLoadDriver(OkRequestQueue requestQueue) {
+        mRequestQueue = requestQueue;
+    }
+
+    /**
+     * Create and start a queue without cache which delivers responses on the network threads,
+     * so no looper is needed
+     *
+     * @param stack   http stack, usually a replay stack
+     * @param threads network thread count
+     * @return started request queue
+     */
+    public static OkRequestQueue newQueue(OkStack stack, int threads) {
+        OkRequestQueue queue = new OkRequestQueue(new NoCache(), new OkNetwork(stack), threads,
+                new ExecutorDelivery(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }));
+        queue.start();
+        return queue;
+    }
+
+    /**
+     * Send total GET requests cycling through urls, keeping at most maxInFlight of them queued
+     *
+     * @param urls        request urls
+     * @param total       request count
+     * @param maxInFlight max requests in flight
+     * @return run result
+     * @throws InterruptedException
+     */
+    public Result run(List<String> urls, int total, int maxInFlight) throws InterruptedException {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No urls to request");
+        }
+        final long[] latencies = new long[total];
+        final AtomicInteger errors = new AtomicInteger();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final CountDownLatch done = new CountDownLatch(total);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            inFlight.acquire();
+            mRequestQueue.add(new LoadRequest(urls.get(i % urls.size()), i, latencies, errors, inFlight, done));
+        }
+        done.await();
+        long durationNs = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        return new Result(total, errors.get(), durationNs, latencies);
+    }
+
+    /**
+     * Result of {@link #run(List, int, int)}, latencies are measured from queueing to delivery
+     */
+    public static class Result {
+        public final int count;
+        public final int errors;
+        public final long durationMs;
+        private final long[] mLatenciesNs;
+
+        Result(int count, int errors, long durationNs, long[] sortedLatenciesNs) {
+            this.count = count;
+            this.errors = errors;
+            this.durationMs = TimeUnit.NANOSECONDS.toMillis(durationNs);
+            this.mLatenciesNs = sortedLatenciesNs;
+        }
+
+        /**
+         * get completed requests per second
+         *
+         * @return throughput
+         */
+        public double getThroughput() {
+            return durationMs == 0 ? 0 : count * 1000d / durationMs;
+        }
+
+        /**
+         * get latency percentile
+         *
+         * @param percentile percentile between 0 and 100
+         * @return latency in milliseconds
+         */
+        public double getLatencyMs(double percentile) {
+            if (mLatenciesNs.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100d * mLatenciesNs.length) - 1;
+            index = Math.max(0, Math.min(mLatenciesNs.length - 1, index));
+            return mLatenciesNs[index] / 1e6d;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "requests=%d, errors=%d, duration=%dms, throughput=%.1f/s, p50=%.2fms, p90=%.2fms, p99=%.2fms, p99.9=%.2fms, max=%.2fms",
+                    count, errors, durationMs, getThroughput(), getLatencyMs(50), getLatencyMs(90),
+                    getLatencyMs(99), getLatencyMs(99.9), getLatencyMs(100));
+        }
+    }
+
+    private static class LoadRequest extends OkRequest<byte[]> {
+
+        private final int mIndex;
+        private final long[] mLatencies;
+        private final AtomicInteger mErrors;
+        private final Semaphore mInFlight;
+        private final CountDownLatch mDone;
+        private final long mStart = System.nanoTime();
+
+        LoadRequest(String url, int index, long[] latencies, AtomicInteger errors, Semaphore inFlight,
+                    CountDownLatch done) {
+            super(Method.GET, url, null);
+            mIndex = index;
+            mLatencies = latencies;
+            mErrors = errors;
+            mInFlight = inFlight;
+            mDone = done;
+            setShouldCache(false);
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response.data, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {
+            super.deliverResponse(response);
+            complete();
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            super.deliverError(error);
+            mErrors.incrementAndGet();
+            complete();
+        }
+
+        private void complete() {
+            mLatencies[mIndex] = System.nanoTime() - mStart;
+            mInFlight.release();
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package im.amomo.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import im.amomo.volley.CacheKeyNormalizer;
+import im.amomo.volley.OkRequest;
+import im.amomo.volley.OkRequestQueue;
+
+/**
+ * Re-fetches frequently used GET urls in the background so they are in the cache before the
+ * app needs them.
+ * <p/>
+ * Every cacheable GET added to the queue bumps a score of its cache key which combines access
+ * frequency and recency (it halves every {@link #setHalfLifeMs(long) half life}). Scores are
+ * kept on disk across app restarts. When the device is charging or the screen is off, the
+ * top scored urls are fetched one after another with low priority, within a request and byte
+ * budget and no more often than the min interval. Cache hits of user requests on prefetched
+ * keys are counted as prefetch hits.
+ * <p/>
+ * A prefetch sends the headers of the latest user request for the key and is stored under
+ * that cache key, so it fills the same entry the user request reads. Only the vary headers
+ * of the request's {@link im.amomo.volley.CacheKeyNormalizer} and the queue's default headers
+ * are stored on disk, never credentials (the Authorization and Cookie headers); keys which
+ * need any other header are not prefetched after a restart until they are requested again.
+ */
+public class OkPrefetcher implements OkRequestQueue.CacheAccessListener {
+
+    private static final String STATS_FILE = "okvolley-prefetch";
+
+    private static final int STATS_VERSION = 3;
+
+    private static final String[] CREDENTIAL_HEADERS = {OkRequest.HEADER_AUTHORIZATION, "Cookie"};
+
+    private final Context mContext;
+
+    private final OkRequestQueue mQueue;
+
+    private final File mStatsFile;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final Map<String, Stat> mStats = new HashMap<String, Stat>();
+
+    private final Set<String> mPrefetched = new HashSet<String>();
+
+    private int mTopN = 10;
+    private long mMaxBytesPerRun = 2 * 1024 * 1024;
+    private long mMinIntervalMs = 60 * 60 * 1000;
+    private long mHalfLifeMs = 24 * 60 * 60 * 1000;
+    private int mMaxTracked = 200;
+
+    private long mLastRun;
+    private boolean mRunning;
+    private BroadcastReceiver mReceiver;
+
+    private long mRuns;
+    private long mRequests;
+    private long mBytes;
+    private long mHits;
+
+    private static class Stat {
+        String url;
+        Map<String, String> headers = Collections.emptyMap();
+        // lower case names of the headers which may be stored on disk
+        Set<String> storable = Collections.emptySet();
+        // headers were dropped when the stats were stored
+        boolean missingHeaders;
+        double score;
+        long lastAccess;
+
+        Stat(String url) {
+            this.url = url;
+        }
+    }
+
+    /**
+     * A key to prefetch with the url and headers recorded for it
+     */
+    private static class Target {
+        final String key;
+        final String url;
+        final Map<String, String> headers;
+
+        Target(String key, Stat stat) {
+            this.key = key;
+            this.url = stat.url;
+            this.headers = stat.headers;
+        }
+    }
+
+    public OkPrefetcher(Context context, OkRequestQueue queue) {
+        mContext = context.getApplicationContext();
+        mQueue = queue;
+        mStatsFile = new File(mContext.getCacheDir(), STATS_FILE);
+        // canceled requests are finished without a delivery
+        queue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                Object finished = request;
+                if (finished instanceof PrefetchRequest) {
+                    ((PrefetchRequest) finished).onFinished(OkPrefetcher.this);
+                }
+            }
+        });
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * set max number of urls fetched per run
+     *
+     * @param topN url count
+     * @return this prefetcher
+     */
+    public synchronized OkPrefetcher setTopN(int topN) {
+        mTopN = topN;
+        return this;
+    }
+
+    /**
+     * set max response bytes fetched per run
+     *
+     * @param maxBytes byte budget
+     * @return this prefetcher
+     */
+    public synchronized OkPrefetcher setMaxBytesPerRun(long maxBytes) {
+        mMaxBytesPerRun = maxBytes;
+        return this;
+    }
+
+    /**
+     * set min time between two runs
+     *
+     * @param minIntervalMs interval in ms
+     * @return this prefetcher
+     */
+    public synchronized OkPrefetcher setMinIntervalMs(long minIntervalMs) {
+        mMinIntervalMs = minIntervalMs;
+        return this;
+    }
+
+    /**
+     * set how fast old accesses lose weight
+     *
+     * @param halfLifeMs time in ms after which an access counts half
+     * @return this prefetcher
+     */
+    public synchronized OkPrefetcher setHalfLifeMs(long halfLifeMs) {
+        mHalfLifeMs = Math.max(1, halfLifeMs);
+        return this;
+    }
+
+    /**
+     * set max number of tracked cache keys, the lowest scored are dropped first
+     *
+     * @param maxTracked key count
+     * @return this prefetcher
+     */
+    public synchronized OkPrefetcher setMaxTracked(int maxTracked) {
+        mMaxTracked = maxTracked;
+        return this;
+    }
+
+    /**
+     * Run automatically when the device starts charging or the screen turns off
+     *
+     * @return this prefetcher
+     */
+    public synchronized OkPrefetcher enableAutoPrefetch() {
+        if (mReceiver == null) {
+            mReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    prefetchIfIdle();
+                }
+            };
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_POWER_CONNECTED);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+            mContext.registerReceiver(mReceiver, filter);
+        }
+        return this;
+    }
+
+    /**
+     * Stop running automatically
+     *
+     * @return this prefetcher
+     */
+    public synchronized OkPrefetcher disableAutoPrefetch() {
+        if (mReceiver != null) {
+            mContext.unregisterReceiver(mReceiver);
+            mReceiver = null;
+        }
+        return this;
+    }
+
+    @Override
+    public void onRequestAdded(OkRequest<?> request) {
+        if (request instanceof PrefetchRequest || request.getMethod() != OkRequest.Method.GET) {
+            return;
+        }
+        Map<String, String> headers;
+        try {
+            headers = new HashMap<String, String>(request.getHeaders());
+        } catch (AuthFailureError e) {
+            return;
+        }
+        Set<String> storable = storableHeaders(request);
+        long now = System.currentTimeMillis();
+        String key = request.getCacheKey();
+        synchronized (this) {
+            Stat stat = mStats.get(key);
+            if (stat == null) {
+                if (mStats.size() >= mMaxTracked) {
+                    trim();
+                }
+                stat = new Stat(request.getUrl());
+                mStats.put(key, stat);
+            }
+            stat.url = request.getUrl();
+            stat.headers = headers;
+            stat.storable = storable;
+            stat.missingHeaders = false;
+            stat.score = decay(stat, now) + 1;
+            stat.lastAccess = now;
+        }
+    }
+
+    @Override
+    public void onCacheHit(OkRequest<?> request) {
+        if (request instanceof PrefetchRequest) {
+            return;
+        }
+        synchronized (this) {
+            if (mPrefetched.remove(request.getCacheKey())) {
+                mHits++;
+            }
+        }
+    }
+
+    /**
+     * Run if the device is charging or the screen is off
+     *
+     * @return true if a run was started
+     */
+    public boolean prefetchIfIdle() {
+        return isIdle() && prefetch();
+    }
+
+    /**
+     * Run now unless a run is in progress or the last one was too recent. Call on the main thread.
+     *
+     * @return true if a run was started
+     */
+    public boolean prefetch() {
+        List<Target> targets;
+        long maxBytes;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (mRunning || now - mLastRun < mMinIntervalMs) {
+                return false;
+            }
+            targets = topTargets(now);
+            if (targets.isEmpty()) {
+                return false;
+            }
+            mRunning = true;
+            mLastRun = now;
+            mRuns++;
+            maxBytes = mMaxBytesPerRun;
+        }
+        VolleyLog.d("Prefetching %d urls", targets.size());
+        new Run(new LinkedList<Target>(targets), maxBytes).next();
+        return true;
+    }
+
+    /**
+     * get number of runs
+     *
+     * @return run count
+     */
+    public synchronized long getRunCount() {
+        return mRuns;
+    }
+
+    /**
+     * get number of urls fetched from the network by runs
+     *
+     * @return request count
+     */
+    public synchronized long getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * get response bytes fetched by runs
+     *
+     * @return byte count
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * get number of user requests answered by a prefetched cache entry
+     *
+     * @return hit count
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * get share of prefetched urls which were used
+     *
+     * @return hits per prefetched url
+     */
+    public synchronized float getHitRate() {
+        return mRequests == 0 ? 0 : (float) mHits / mRequests;
+    }
+
+    /**
+     * Store scores to disk, in the background
+     */
+    public void save() {
+        final List<Map.Entry<String, Stat>> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<Map.Entry<String, Stat>>(mStats.entrySet());
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(snapshot);
+            }
+        });
+    }
+
+    private boolean isIdle() {
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return true;
+        }
+        PowerManager power = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        //noinspection deprecation
+        return power != null && !power.isScreenOn();
+    }
+
+    private double decay(Stat stat, long now) {
+        if (stat.lastAccess == 0) {
+            return stat.score;
+        }
+        return stat.score * Math.pow(0.5, (double) (now - stat.lastAccess) / mHalfLifeMs);
+    }
+
+    private List<Target> topTargets(final long now) {
+        List<Map.Entry<String, Stat>> entries = new ArrayList<Map.Entry<String, Stat>>(mStats.entrySet());
+        final Map<Stat, Double> scores = new HashMap<Stat, Double>();
+        for (Map.Entry<String, Stat> entry : entries) {
+            scores.put(entry.getValue(), decay(entry.getValue(), now));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Stat>>() {
+            @Override
+            public int compare(Map.Entry<String, Stat> lhs, Map.Entry<String, Stat> rhs) {
+                return Double.compare(scores.get(rhs.getValue()), scores.get(lhs.getValue()));
+            }
+        });
+        List<Target> targets = new ArrayList<Target>(mTopN);
+        for (int i = 0; i < entries.size() && targets.size() < mTopN; i++) {
+            Map.Entry<String, Stat> entry = entries.get(i);
+            if (!entry.getValue().missingHeaders) {
+                targets.add(new Target(entry.getKey(), entry.getValue()));
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Drop the lowest scored key
+     */
+    private void trim() {
+        long now = System.currentTimeMillis();
+        String lowest = null;
+        double lowestScore = Double.MAX_VALUE;
+        for (Map.Entry<String, Stat> entry : mStats.entrySet()) {
+            double score = decay(entry.getValue(), now);
+            if (score < lowestScore) {
+                lowestScore = score;
+                lowest = entry.getKey();
+            }
+        }
+        if (lowest != null) {
+            mStats.remove(lowest);
+        }
+    }
+
+    private synchronized void onPrefetched(String cacheKey, long bytes) {
+        mRequests++;
+        mBytes += bytes;
+        mPrefetched.add(cacheKey);
+    }
+
+    private synchronized void onRunFinished() {
+        mRunning = false;
+        save();
+    }
+
+    private void load() {
+        if (!mStatsFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStatsFile)));
+            if (in.readInt() != STATS_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    Stat stat = new Stat(in.readUTF());
+                    int headerCount = in.readInt();
+                    Map<String, String> headers = new HashMap<String, String>(headerCount);
+                    for (int j = 0; j < headerCount; j++) {
+                        headers.put(in.readUTF(), in.readUTF());
+                    }
+                    stat.headers = headers;
+                    stat.storable = lowerCase(headers.keySet());
+                    stat.missingHeaders = in.readBoolean();
+                    stat.score = in.readDouble();
+                    stat.lastAccess = in.readLong();
+                    Stat current = mStats.get(key);
+                    if (current != null) {
+                        // accessed since start up before the stats were loaded
+                        current.score += decay(stat, current.lastAccess);
+                    } else {
+                        mStats.put(key, stat);
+                    }
+                }
+                while (mStats.size() > mMaxTracked) {
+                    trim();
+                }
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "error on loading prefetch stats");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    private void write(List<Map.Entry<String, Stat>> stats) {
+        File temp = new File(mStatsFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(STATS_VERSION);
+            out.writeInt(stats.size());
+            for (Map.Entry<String, Stat> entry : stats) {
+                Stat stat = entry.getValue();
+                synchronized (this) {
+                    Map<String, String> headers = new HashMap<String, String>(stat.headers);
+                    boolean missingHeaders = stat.missingHeaders;
+                    for (Iterator<String> it = headers.keySet().iterator(); it.hasNext(); ) {
+                        if (!stat.storable.contains(it.next().toLowerCase(Locale.US))) {
+                            it.remove();
+                            missingHeaders = true;
+                        }
+                    }
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(stat.url);
+                    out.writeInt(headers.size());
+                    for (Map.Entry<String, String> header : headers.entrySet()) {
+                        out.writeUTF(header.getKey());
+                        out.writeUTF(header.getValue());
+                    }
+                    out.writeBoolean(missingHeaders);
+                    out.writeDouble(stat.score);
+                    out.writeLong(stat.lastAccess);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mStatsFile)) {
+                VolleyLog.e("Can not store prefetch stats to %s", mStatsFile);
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "error on storing prefetch stats");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * Names of the headers of a request which may be stored on disk: its vary headers and the
+     * queue defaults, without credentials
+     */
+    private Set<String> storableHeaders(OkRequest<?> request) {
+        Set<String> names = new HashSet<String>();
+        CacheKeyNormalizer normalizer = request.getCacheKeyNormalizer();
+        if (normalizer != null) {
+            names.addAll(normalizer.getVaryHeaders());
+        }
+        Map<String, String> defaults = mQueue.getRequestHeaders();
+        if (defaults != null) {
+            names.addAll(defaults.keySet());
+        }
+        names = lowerCase(names);
+        for (String name : CREDENTIAL_HEADERS) {
+            names.remove(name.toLowerCase(Locale.US));
+        }
+        return names;
+    }
+
+    private static Set<String> lowerCase(Set<String> names) {
+        Set<String> lowerCase = new HashSet<String>(names.size());
+        for (String name : names) {
+            lowerCase.add(name.toLowerCase(Locale.US));
+        }
+        return lowerCase;
+    }
+
+    /**
+     * One prefetch run, fetching its urls one after another
+     */
+    private class Run {
+        private final Iterator<Target> mTargets;
+        private final long mMaxBytes;
+        private long mBytes;
+
+        Run(List<Target> targets, long maxBytes) {
+            mTargets = targets.iterator();
+            mMaxBytes = maxBytes;
+        }
+
+        void next() {
+            if (!mTargets.hasNext() || mBytes >= mMaxBytes) {
+                onRunFinished();
+                return;
+            }
+            mQueue.add(new PrefetchRequest(mTargets.next(), this));
+        }
+
+        void onFetched(PrefetchRequest request, long bytes) {
+            mBytes += bytes;
+            if (request.mFromNetwork) {
+                onPrefetched(request.getCacheKey(), bytes);
+            }
+            next();
+        }
+
+        boolean isOf(OkPrefetcher prefetcher) {
+            return OkPrefetcher.this == prefetcher;
+        }
+    }
+
+    /**
+     * A low priority GET which only fills the cache, under the key of the recorded request
+     */
+    private static class PrefetchRequest extends OkRequest<Long> {
+
+        private final Run mRun;
+
+        private final String mCacheKey;
+
+        private volatile boolean mFromNetwork;
+
+        private volatile long mBytes;
+
+        PrefetchRequest(Target target, Run run) {
+            super(Method.GET, target.url, null);
+            mRun = run;
+            mCacheKey = target.key;
+            for (Map.Entry<String, String> header : target.headers.entrySet()) {
+                header(header.getKey(), header.getValue());
+            }
+        }
+
+        @Override
+        public String getCacheKey() {
+            return mCacheKey;
+        }
+
+        @Override
+        public Priority getPriority() {
+            return Priority.LOW;
+        }
+
+        @Override
+        public void addMarker(String tag) {
+            super.addMarker(tag);
+            if ("network-http-complete".equals(tag)) {
+                mFromNetwork = true;
+            }
+        }
+
+        @Override
+        protected Response<Long> parseNetworkResponse(NetworkResponse response) {
+            long bytes = response.data != null ? response.data.length : 0;
+            return Response.success(bytes, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(Long bytes) {
+            super.deliverResponse(bytes);
+            // a refreshed cache entry is delivered from the cache first
+            if (mFromNetwork) {
+                mBytes = bytes;
+            }
+        }
+
+        /**
+         * Called once the request is finished, delivered, failed or canceled
+         */
+        void onFinished(OkPrefetcher prefetcher) {
+            if (mRun.isOf(prefetcher)) {
+                mRun.onFetched(this, mBytes);
+            }
+        }
+    }
+}
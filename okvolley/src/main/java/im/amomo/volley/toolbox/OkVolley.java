@@ -1,25 +1,46 @@
 package im.amomo.volley.toolbox;
 
 import com.android.volley.Cache;
-import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.Request;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.Authenticator;
 import com.squareup.okhttp.CertificatePinner;
 
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.net.ssl.HostnameVerifier;
 
+import im.amomo.volley.BandwidthEstimator;
+import im.amomo.volley.BatchingDeliveryExecutor;
+import im.amomo.volley.ByteBudget;
+import im.amomo.volley.EndpointRegistry;
+import im.amomo.volley.EndpointStats;
+import im.amomo.volley.HedgeBudget;
+import im.amomo.volley.HostSelector;
 import im.amomo.volley.OkHttpStack;
 import im.amomo.volley.OkNetwork;
 import im.amomo.volley.OkRequest;
 import im.amomo.volley.OkRequestQueue;
 import im.amomo.volley.OkStack;
+import im.amomo.volley.ParallelLookupCache;
+import im.amomo.volley.RedirectCache;
+import im.amomo.volley.TlsSessionCache;
+import im.amomo.volley.TokenRefresher;
 
 /**
  * Created by GoogolMo on 10/22/13.
@@ -34,15 +55,147 @@ public class OkVolley {
      */
     private static final String DEFAULT_CACHE_DIR = "volley";
 
-    private static OkVolley _instance;
+    /**
+     * Default number of cache lookup threads.
+     */
+    private static final int DEFAULT_CACHE_LOOKUP_THREADS = 4;
+
+    /**
+     * Default file and size of the permanent redirect cache.
+     */
+    private static final String DEFAULT_REDIRECT_CACHE_FILE = "okvolley-redirects";
+    private static final int DEFAULT_REDIRECT_CACHE_SIZE = 256;
+
+    /**
+     * Default directory of persisted TLS sessions.
+     */
+    private static final String DEFAULT_TLS_SESSION_DIR = "okvolley-tls";
+
+    private static volatile OkVolley _instance;
     private String mUserAgent;
 
     private Map<String, String> mRequestHeaders;
 
     private OkRequestQueue mRequestQueue;
-    private Cache mCache;
+    private WriteBehindCache mCache;
+    /**
+     * Shared by all queues, one instance per cache directory
+     */
+    private OkDiskCache mDiskCache;
+    private ParallelLookupCache mCacheLookup;
     private OkNetwork mNetwork;
     private OkHttpStack mHttpStack;
+    private OkPrefetcher mPrefetcher;
+    private final Context mContext;
+
+    /**
+     * Requests added through {@link #add(Request)} before the queue is started, null after
+     */
+    private List<Request<?>> mPendingRequests = new ArrayList<Request<?>>();
+    private final long mInitStart = SystemClock.elapsedRealtime();
+    private volatile InitTiming mInitTiming;
+    /**
+     * Thrown by the init thread, the default request queue is never started then
+     */
+    private Throwable mInitError;
+
+    /**
+     * Callback of {@link #initAsync(Context, InitListener)}
+     */
+    public interface InitListener {
+        /**
+         * Called on the init thread once the default request queue is started
+         */
+        public void onInitialized(OkVolley volley, InitTiming timing);
+
+        /**
+         * Called on the init thread if starting the default request queue failed, methods
+         * which need the queue throw an {@link IllegalStateException} with the error as cause
+         */
+        public void onInitFailed(OkVolley volley, Throwable error);
+    }
+
+    /**
+     * Time spent in the steps of initialization, in milliseconds
+     */
+    public static class InitTiming {
+        private final long mCallerMs;
+        private final long mUserAgentMs;
+        private final long mStackMs;
+        private final long mQueueMs;
+        private final long mReadyMs;
+        private final int mBufferedRequests;
+
+        InitTiming(long callerMs, long userAgentMs, long stackMs, long queueMs, long readyMs, int bufferedRequests) {
+            mCallerMs = callerMs;
+            mUserAgentMs = userAgentMs;
+            mStackMs = stackMs;
+            mQueueMs = queueMs;
+            mReadyMs = readyMs;
+            mBufferedRequests = bufferedRequests;
+        }
+
+        /**
+         * get time the init call blocked its calling thread
+         *
+         * @return duration
+         */
+        public long getCallerMs() {
+            return mCallerMs;
+        }
+
+        /**
+         * get time spent building the default user agent
+         *
+         * @return duration
+         */
+        public long getUserAgentMs() {
+            return mUserAgentMs;
+        }
+
+        /**
+         * get time spent building the HTTP stack and loading its persisted state
+         *
+         * @return duration
+         */
+        public long getStackMs() {
+            return mStackMs;
+        }
+
+        /**
+         * get time spent creating the cache and starting the request queue
+         *
+         * @return duration
+         */
+        public long getQueueMs() {
+            return mQueueMs;
+        }
+
+        /**
+         * get time from the init call until the request queue was started
+         *
+         * @return duration
+         */
+        public long getReadyMs() {
+            return mReadyMs;
+        }
+
+        /**
+         * get number of requests added before the queue was started
+         *
+         * @return buffered request count
+         */
+        public int getBufferedRequests() {
+            return mBufferedRequests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "caller=%dms, user agent=%dms, stack=%dms, queue=%dms, ready=%dms, buffered=%d",
+                    mCallerMs, mUserAgentMs, mStackMs, mQueueMs, mReadyMs, mBufferedRequests);
+        }
+    }
 
     public static OkVolley getInstance() {
         if (_instance == null) {
@@ -52,12 +205,9 @@ public class OkVolley {
     }
 
     private OkVolley(Context context) {
-        mUserAgent = generateDefaultUserAgent(context);
+        mContext = context.getApplicationContext();
         mRequestHeaders = new HashMap<>();
-        mRequestHeaders.put(OkRequest.HEADER_USER_AGENT, mUserAgent);
         mRequestHeaders.put(OkRequest.HEADER_ACCEPT_CHARSET, OkRequest.CHARSET_UTF8);
-
-        mRequestQueue = newDefaultRequestQueue(context);
     }
 
     /**
@@ -66,13 +216,175 @@ public class OkVolley {
      * @param context Context
      * @return this Volley Object
      */
-    public static OkVolley init(Context context) {
+    public static synchronized OkVolley init(Context context) {
+        if (_instance == null) {
+            OkVolley volley = new OkVolley(context);
+            volley.start(-1, null);
+            _instance = volley;
+        }
+        return _instance;
+    }
+
+    /**
+     * init method which returns right away and starts the default request queue on a
+     * background thread. Requests passed to {@link #add(Request)} meanwhile are added in
+     * order once the queue is started; methods which need the queue wait for it.
+     *
+     * @param context  Context
+     * @param listener notified with the startup timing, can be null
+     * @return this Volley Object
+     */
+    public static synchronized OkVolley initAsync(Context context, final InitListener listener) {
         if (_instance == null) {
-            _instance = new OkVolley(context);
+            final OkVolley volley = new OkVolley(context);
+            _instance = volley;
+            final long callerMs = SystemClock.elapsedRealtime() - volley.mInitStart;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        volley.start(callerMs, listener);
+                    } catch (RuntimeException e) {
+                        volley.onInitFailed(e, listener);
+                    } catch (Error e) {
+                        volley.onInitFailed(e, listener);
+                        throw e;
+                    }
+                }
+            }, "OkVolley-Init").start();
         }
         return _instance;
     }
 
+    /**
+     * Build the user agent and persisted state, start the default request queue and add the
+     * requests buffered until then
+     *
+     * @param callerMs time spent on the calling thread, -1 if everything runs there
+     */
+    private void start(long callerMs, InitListener listener) {
+        long start = SystemClock.elapsedRealtime();
+        String userAgent = generateDefaultUserAgent(mContext);
+        long userAgentDone = SystemClock.elapsedRealtime();
+
+        OkHttpStack stack = getHttpStack();
+        getNetwork();
+        if (stack.getRedirectCache() == null) {
+            RedirectCache redirectCache = new RedirectCache(DEFAULT_REDIRECT_CACHE_SIZE,
+                    new File(mContext.getCacheDir(), DEFAULT_REDIRECT_CACHE_FILE));
+            synchronized (this) {
+                // unless the app set its own meanwhile
+                if (stack.getRedirectCache() == null) {
+                    stack.setRedirectCache(redirectCache);
+                }
+            }
+        }
+        long stackDone = SystemClock.elapsedRealtime();
+
+        int buffered;
+        synchronized (this) {
+            if (mUserAgent == null) {
+                mUserAgent = userAgent;
+                mRequestHeaders.put(OkRequest.HEADER_USER_AGENT, mUserAgent);
+            }
+            OkRequestQueue queue = newDefaultRequestQueue(mContext);
+            buffered = mPendingRequests.size();
+            for (Request<?> request : mPendingRequests) {
+                queue.add(request);
+            }
+            mPendingRequests = null;
+            mRequestQueue = queue;
+            notifyAll();
+        }
+        long ready = SystemClock.elapsedRealtime();
+
+        mInitTiming = new InitTiming(callerMs < 0 ? ready - mInitStart : callerMs,
+                userAgentDone - start, stackDone - userAgentDone, ready - stackDone, ready - mInitStart, buffered);
+        if (listener != null) {
+            listener.onInitialized(this, mInitTiming);
+        }
+    }
+
+    /**
+     * Wake up the threads waiting for the default request queue, they throw the error
+     */
+    private void onInitFailed(Throwable error, InitListener listener) {
+        VolleyLog.e(error, "OkVolley init failed");
+        synchronized (this) {
+            if (mRequestQueue != null) {
+                // failed in the listener, the queue is started
+                return;
+            }
+            mInitError = error;
+            mPendingRequests = null;
+            notifyAll();
+        }
+        if (listener != null) {
+            listener.onInitFailed(this, error);
+        }
+    }
+
+    /**
+     * get the startup timing
+     *
+     * @return timing, null until the default request queue is started
+     */
+    public InitTiming getInitTiming() {
+        return mInitTiming;
+    }
+
+    /**
+     * check whether the default request queue is started, requests passed to
+     * {@link #add(Request)} are buffered until then
+     *
+     * @return true once started, false while starting or if starting failed
+     */
+    public synchronized boolean isReady() {
+        return mRequestQueue != null;
+    }
+
+    /**
+     * Add a request to the default request queue, or buffer it until the queue is started
+     *
+     * @param request request
+     * @return the request
+     * @throws IllegalStateException if starting the default request queue failed
+     */
+    public <T> Request<T> add(Request<T> request) {
+        OkRequestQueue queue;
+        synchronized (this) {
+            checkInitError();
+            if (mRequestQueue == null) {
+                mPendingRequests.add(request);
+                return request;
+            }
+            queue = mRequestQueue;
+        }
+        return queue.add(request);
+    }
+
+    private synchronized OkRequestQueue awaitRequestQueue() {
+        boolean interrupted = false;
+        while (mRequestQueue == null && mInitError == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkInitError();
+        return mRequestQueue;
+    }
+
+    private void checkInitError() {
+        if (mInitError != null) {
+            throw new IllegalStateException("OkVolley init failed", mInitError);
+        }
+    }
+
     /**
      * set default all user-agent
      *
@@ -81,9 +393,15 @@ public class OkVolley {
      */
     public OkVolley setUserAgent(String userAgent)
     {
-        this.mUserAgent = userAgent;
-        mRequestHeaders.put(OkRequest.HEADER_USER_AGENT, mUserAgent);
-        mRequestQueue.updateRequestHeaders(mRequestHeaders);
+        synchronized (this)
+        {
+            this.mUserAgent = userAgent;
+            mRequestHeaders.put(OkRequest.HEADER_USER_AGENT, mUserAgent);
+            if (mRequestQueue != null)
+            {
+                mRequestQueue.updateRequestHeaders(mRequestHeaders);
+            }
+        }
         return this;
     }
 
@@ -149,7 +467,7 @@ public class OkVolley {
      * @return this Volley Object
      */
     public OkVolley setHostnameTrustedVerifier(HostnameVerifier verifier) {
-        mHttpStack.setHostnameVerifier(verifier);
+        getHttpStack().setHostnameVerifier(verifier);
         return this;
     }
 
@@ -159,7 +477,7 @@ public class OkVolley {
      * @return this Volley Object
      */
     public OkVolley trustAllCerts() {
-        mHttpStack.trustAllCerts();
+        getHttpStack().trustAllCerts();
         return this;
     }
 
@@ -169,44 +487,264 @@ public class OkVolley {
      * @return this Volley Object
      */
     public OkVolley pinnCert(final CertificatePinner certificatePinner){
-          mHttpStack.pinnCert(certificatePinner);
+          getHttpStack().pinnCert(certificatePinner);
+        return this;
+    }
+
+    /**
+     * persist TLS sessions of the default request queue in the cache directory, so the first
+     * connections after a restart skip the full handshake
+     *
+     * @param maxSessions max number of persisted sessions
+     * @param maxAgeMs    max age of a persisted session
+     * @return this Volley Object
+     * @throws IOException if the session directory can not be used
+     */
+    public OkVolley persistTlsSessions(int maxSessions, long maxAgeMs) throws IOException {
+        getHttpStack().setTlsSessionCache(new TlsSessionCache(
+                new File(mContext.getCacheDir(), DEFAULT_TLS_SESSION_DIR), maxSessions, maxAgeMs));
+        return this;
+    }
+
+    /**
+     * set cache of permanent redirects, replaces the one {@link #init(Context)} installs
+     *
+     * @param redirectCache redirect cache, see {@link RedirectCache}
+     * @return this Volley Object
+     */
+    public synchronized OkVolley setRedirectCache(RedirectCache redirectCache) {
+        getHttpStack().setRedirectCache(redirectCache);
         return this;
     }
 
     /**
-     * get the default request queue
+     * route requests of the default request queue to the best of several hosts serving the
+     * same API, failing over when a host can not be reached
+     *
+     * @param hostSelector host selector, see {@link HostSelector}
+     * @return this Volley Object
+     */
+    public OkVolley setHostSelector(HostSelector hostSelector) {
+        getHttpStack().setHostSelector(hostSelector);
+        return this;
+    }
+
+    /**
+     * limit response bytes buffered in memory at the same time by the default request queue
+     *
+     * @param capacity  max number of bytes buffered at the same time
+     * @param maxWaitMs max time a request waits for capacity, 0 to fail fast
+     * @return this Volley Object
+     */
+    public OkVolley setMemoryBudget(long capacity, long maxWaitMs) {
+        getNetwork().setByteBudget(new ByteBudget(capacity, maxWaitMs));
+        return this;
+    }
+
+    /**
+     * get the memory budget of the default request queue
+     *
+     * @return budget with its capacity and current usage, null if there is no limit
+     */
+    public ByteBudget getMemoryBudget() {
+        return getNetwork().getByteBudget();
+    }
+
+    /**
+     * sign requests of the default request queue to the given hosts with a bearer token,
+     * refreshed once for all requests rejected with 401, see
+     * {@link OkNetwork#setAuthenticator(Authenticator, String...)}
+     *
+     * @param authenticator authenticator, null to stop signing requests
+     * @param hosts         hosts to send the token to, at least one
+     * @return this Volley Object
+     */
+    public OkVolley setAuthenticator(Authenticator authenticator, String... hosts) {
+        getNetwork().setAuthenticator(authenticator, hosts);
+        return this;
+    }
+
+    /**
+     * get the token refresher of the default request queue with its refresh metrics
+     *
+     * @return refresher, null if no authenticator is set
+     */
+    public TokenRefresher getTokenRefresher() {
+        return getNetwork().getTokenRefresher();
+    }
+
+    /**
+     * get round trip time and throughput estimate of the default request queue, used by
+     * requests with adaptive timeouts
+     *
+     * @return estimator, see {@link BandwidthEstimator}
+     */
+    public BandwidthEstimator getBandwidthEstimator() {
+        return getNetwork().getBandwidthEstimator();
+    }
+
+    /**
+     * get the prefetcher of the default request queue, see {@link OkPrefetcher}
+     *
+     * @return prefetcher, created and attached on first use
+     */
+    public synchronized OkPrefetcher getPrefetcher() {
+        if (mPrefetcher == null) {
+            OkRequestQueue queue = awaitRequestQueue();
+            mPrefetcher = new OkPrefetcher(mContext, queue);
+            queue.setCacheAccessListener(mPrefetcher);
+        }
+        return mPrefetcher;
+    }
+
+    /**
+     * get per endpoint latency, error and traffic counters of the default request queue
+     *
+     * @return registry, see {@link EndpointRegistry}
+     */
+    public EndpointRegistry getEndpointRegistry() {
+        return awaitRequestQueue().getEndpointRegistry();
+    }
+
+    /**
+     * Copy the per endpoint counters of the default request queue
+     *
+     * @return snapshots, one per endpoint template
+     */
+    public List<EndpointStats.Snapshot> getEndpointStats() {
+        return awaitRequestQueue().getEndpointRegistry().snapshot();
+    }
+
+    /**
+     * get the budget capping hedged requests of the default request queue
+     *
+     * @return hedge budget with its win-rate metrics, see {@link HedgeBudget}
+     */
+    public HedgeBudget getHedgeBudget() {
+        return getHttpStack().getHedgeBudget();
+    }
+
+    /**
+     * get the cache of the default request queue, entries put or removed through it also
+     * drop the pending lookups of their keys
+     *
+     * @return outermost cache of the default request queue
+     */
+    public Cache getCache() {
+        awaitRequestQueue();
+        return mCacheLookup;
+    }
+
+    /**
+     * get the background writes of the default request queue's cache
+     *
+     * @return cache with its queue depth and write latency, see {@link WriteBehindCache}
+     */
+    public WriteBehindCache getWriteBehindCache() {
+        awaitRequestQueue();
+        return mCache;
+    }
+
+    /**
+     * get the parallel cache lookups of the default request queue
+     *
+     * @return lookups with their wait time, see {@link ParallelLookupCache}
+     */
+    public ParallelLookupCache getCacheLookup() {
+        awaitRequestQueue();
+        return mCacheLookup;
+    }
+
+    /**
+     * get the default request queue, waits for it after {@link #initAsync(Context, InitListener)}
      *
      * @return default {@link com.android.volley.RequestQueue}
      */
     public OkRequestQueue getRequestQueue() {
-         return mRequestQueue;
+         return awaitRequestQueue();
     }
 
     public OkRequestQueue newRequestQueue(Context context) {
-        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        OkRequestQueue queue = new OkRequestQueue(getDiskCache(context), new OkNetwork(getDefaultHttpStack()));
+        queue.start();
+
+        return queue;
+    }
 
-        OkRequestQueue queue = new OkRequestQueue(new DiskBasedCache(cacheDir), new OkNetwork(getDefaultHttpStack()));
+    /**
+     * create a request queue which delivers responses in batches
+     *
+     * @param context          Context
+     * @param deliveryExecutor batching executor, see {@link BatchingDeliveryExecutor}
+     * @return started request queue
+     */
+    public OkRequestQueue newRequestQueue(Context context, BatchingDeliveryExecutor deliveryExecutor) {
+        OkRequestQueue queue = new OkRequestQueue(getDiskCache(context), new OkNetwork(getDefaultHttpStack()),
+                mRequestHeaders, deliveryExecutor);
         queue.start();
 
         return queue;
     }
+
+    /**
+     * create a request queue which parses responses on threads not holding a network slot
+     *
+     * @param context      Context
+     * @param ioThreads    number of requests doing network I/O at the same time
+     * @param parseThreads number of extra threads for parsing, usually the CPU core count
+     * @return started request queue, see {@link OkRequestQueue#getNetworkSlots()}
+     */
+    public OkRequestQueue newRequestQueue(Context context, int ioThreads, int parseThreads) {
+        OkRequestQueue queue = new OkRequestQueue(getDiskCache(context), new OkNetwork(getDefaultHttpStack()),
+                ioThreads, parseThreads, new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+        queue.updateRequestHeaders(mRequestHeaders);
+        queue.start();
+
+        return queue;
+    }
+
     protected OkRequestQueue newDefaultRequestQueue(Context context)
     {
-        mNetwork = new OkNetwork(getDefaultHttpStack());
-
-        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
-        mCache = new DiskBasedCache(cacheDir);
+        mCache = new WriteBehindCache(getDiskCache(context));
+        mCacheLookup = new ParallelLookupCache(mCache, DEFAULT_CACHE_LOOKUP_THREADS);
 
-        OkRequestQueue queue = new OkRequestQueue(mCache, mNetwork, mRequestHeaders);
+        OkRequestQueue queue = new OkRequestQueue(mCacheLookup, getNetwork(), mRequestHeaders);
+        queue.setEndpointRegistry(new EndpointRegistry());
         queue.start();
 
         return queue;
     }
 
+    /**
+     * get the disk cache of all queues, OkDiskCache keeps its index in memory and two
+     * instances on one directory would overwrite each other's bodies
+     */
+    private synchronized OkDiskCache getDiskCache(Context context) {
+        if (mDiskCache == null) {
+            mDiskCache = new OkDiskCache(new File(context.getCacheDir(), DEFAULT_CACHE_DIR));
+        }
+        return mDiskCache;
+    }
+
     protected OkStack getDefaultHttpStack() {
+        return getHttpStack();
+    }
+
+    /**
+     * get the HTTP stack, built on first use so {@link #initAsync(Context, InitListener)}
+     * builds it on the init thread unless the app configures it first
+     */
+    private synchronized OkHttpStack getHttpStack() {
         if (mHttpStack == null) {
             mHttpStack = new OkHttpStack();
         }
         return mHttpStack;
     }
+
+    private synchronized OkNetwork getNetwork() {
+        if (mNetwork == null) {
+            mNetwork = new OkNetwork(getHttpStack());
+        }
+        return mNetwork;
+    }
 }
@@ -0,0 +1,328 @@
+package im.amomo.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link Cache} decorator which writes to the wrapped cache on a background thread, so
+ * network dispatchers deliver without waiting for the disk.
+ * <p/>
+ * Writes wait in a queue in order, bounded by the bytes of the queued bodies. A put for a key
+ * which is still queued replaces the queued entry instead of writing twice, and reads of
+ * queued keys return the queued entry. When the queue is full, callers wait until the writer
+ * caught up; an entry larger than the bound is queued once the queue is empty.
+ * <p/>
+ * The writer thread starts with the first write and stops after {@link #close()} once the
+ * queue is written, {@link im.amomo.volley.OkRequestQueue#stop()} closes the cache of the queue.
+ */
+public class WriteBehindCache implements Cache, Closeable {
+
+    private static final long DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private static final Object REMOVED = new Object();
+
+    private final Cache mDelegate;
+
+    private final long mMaxPendingBytes;
+
+    /**
+     * Queued writes by key in queue order, an entry to put or {@link #REMOVED}
+     */
+    private final LinkedHashMap<String, Object> mPending = new LinkedHashMap<String, Object>();
+
+    /**
+     * Held while writing to the wrapped cache, so {@link #clear()} does not race a write
+     */
+    private final Object mWriteLock = new Object();
+
+    private long mPendingBytes;
+
+    private Thread mWriter;
+
+    private boolean mClosing;
+
+    private long mWrites;
+    private long mCoalesced;
+    private long mBlocked;
+    private int mMaxDepth;
+    private long mTotalWriteMs;
+    private long mMaxWriteMs;
+
+    public WriteBehindCache(Cache delegate) {
+        this(delegate, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param delegate        cache written to
+     * @param maxPendingBytes max bytes of queued bodies
+     */
+    public WriteBehindCache(Cache delegate, long maxPendingBytes) {
+        mDelegate = delegate;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    @Override
+    public Entry get(String key) {
+        synchronized (this) {
+            Object pending = mPending.get(key);
+            if (pending == REMOVED) {
+                return null;
+            }
+            if (pending != null) {
+                return (Entry) pending;
+            }
+        }
+        return mDelegate.get(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        enqueue(key, entry);
+    }
+
+    @Override
+    public void initialize() {
+        mDelegate.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            enqueue(key, entry);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        enqueue(key, REMOVED);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.clear();
+                mPendingBytes = 0;
+                notifyAll();
+            }
+            mDelegate.clear();
+        }
+    }
+
+    /**
+     * Wait until all queued writes reached the wrapped cache
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (!mPending.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * Stop the writer thread once the queued writes are written. A later write starts it again.
+     */
+    @Override
+    public synchronized void close() {
+        mClosing = true;
+        notifyAll();
+    }
+
+    private synchronized void enqueue(String key, Object value) {
+        mClosing = false;
+        startWriter();
+        long size = sizeOf(value);
+        if (mPending.containsKey(key)) {
+            // keeps its place in the queue, the newest value is written
+            mPendingBytes += size - sizeOf(mPending.put(key, value));
+            mCoalesced++;
+            return;
+        }
+        if (isFull(size)) {
+            mBlocked++;
+            while (isFull(size)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        mPending.put(key, value);
+        mPendingBytes += size;
+        mMaxDepth = Math.max(mMaxDepth, mPending.size());
+        notifyAll();
+    }
+
+    private boolean isFull(long size) {
+        return !mPending.isEmpty() && mPendingBytes + size > mMaxPendingBytes;
+    }
+
+    private static long sizeOf(Object value) {
+        return value instanceof Entry && ((Entry) value).data != null ? ((Entry) value).data.length : 0;
+    }
+
+    private void startWriter() {
+        if (mWriter != null) {
+            return;
+        }
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        }, "OkVolley-CacheWriter");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            String key;
+            Object value;
+            synchronized (this) {
+                while (mPending.isEmpty()) {
+                    if (mClosing) {
+                        mWriter = null;
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mWriter = null;
+                        return;
+                    }
+                }
+                Iterator<Map.Entry<String, Object>> first = mPending.entrySet().iterator();
+                Map.Entry<String, Object> next = first.next();
+                key = next.getKey();
+                value = next.getValue();
+            }
+            synchronized (mWriteLock) {
+                synchronized (this) {
+                    if (mPending.get(key) != value) {
+                        // cleared or replaced meanwhile, look again
+                        continue;
+                    }
+                }
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    if (value == REMOVED) {
+                        mDelegate.remove(key);
+                    } else {
+                        mDelegate.put(key, (Entry) value);
+                    }
+                } catch (RuntimeException e) {
+                    VolleyLog.e(e, "Could not write cache entry %s", key);
+                }
+                long duration = SystemClock.elapsedRealtime() - start;
+                synchronized (this) {
+                    if (mPending.get(key) == value) {
+                        mPending.remove(key);
+                        mPendingBytes -= sizeOf(value);
+                    }
+                    mWrites++;
+                    mTotalWriteMs += duration;
+                    mMaxWriteMs = Math.max(mMaxWriteMs, duration);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * get number of queued writes
+     *
+     * @return queue depth
+     */
+    public synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * get bytes of the bodies of queued writes
+     *
+     * @return queued bytes
+     */
+    public synchronized long getQueueBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * get highest number of queued writes seen
+     *
+     * @return max queue depth
+     */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * get number of writes which reached the wrapped cache
+     *
+     * @return write count
+     */
+    public synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    /**
+     * get number of writes replaced by a newer write for the same key before they ran
+     *
+     * @return coalesced write count
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * get number of writes which waited for a full queue
+     *
+     * @return blocked write count
+     */
+    public synchronized long getBlockedCount() {
+        return mBlocked;
+    }
+
+    /**
+     * get average time a write to the wrapped cache took
+     *
+     * @return time in milliseconds
+     */
+    public synchronized long getAverageWriteMs() {
+        return mWrites == 0 ? 0 : mTotalWriteMs / mWrites;
+    }
+
+    /**
+     * get longest time a write to the wrapped cache took
+     *
+     * @return time in milliseconds
+     */
+    public synchronized long getMaxWriteMs() {
+        return mMaxWriteMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "depth=%d, bytes=%d, max depth=%d, writes=%d, coalesced=%d, blocked=%d, avg=%dms, max=%dms",
+                mPending.size(), mPendingBytes, mMaxDepth, mWrites, mCoalesced, mBlocked, getAverageWriteMs(), mMaxWriteMs);
+    }
+}
@@ -0,0 +1,196 @@
+package im.amomo.volley;
+
+import com.android.volley.ExecutorDelivery;
+import com.android.volley.NetworkResponse;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.NoCache;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads end to end against a stub server which stores the chunks it accepts.
+ */
+public class OkChunkedUploadTest {
+
+    private static final int SIZE = 100 * 1024;
+
+    private static final int CHUNK = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final MockWebServer mServer = new MockWebServer();
+
+    private final Buffer mStored = new Buffer();
+
+    private final byte[] mBody = new byte[SIZE];
+
+    /**
+     * Chunk requests answered with a 503, -1 for none
+     */
+    private volatile int mFailFrom = -1;
+    private volatile int mFailCount;
+
+    private volatile boolean mStuck;
+
+    private int mRequests;
+
+    private OkRequestQueue mQueue;
+
+    private File mFile;
+
+    private File mStateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(mBody);
+        mFile = mFolder.newFile("upload.bin");
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(mBody);
+        out.close();
+        mStateFile = new File(mFolder.getRoot(), "upload.state");
+
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond(request);
+            }
+        });
+        mServer.start();
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        mQueue = new OkRequestQueue(new NoCache(), new OkNetwork(new OkHttpStack()), 1, new ExecutorDelivery(direct));
+        mQueue.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mQueue.stop();
+        mServer.shutdown();
+    }
+
+    private synchronized MockResponse respond(RecordedRequest request) {
+        int index = mRequests++;
+        if (mFailFrom >= 0 && index >= mFailFrom && index < mFailFrom + mFailCount) {
+            return new MockResponse().setResponseCode(503);
+        }
+        MockResponse response = new MockResponse().setHeader(OkChunkedUpload.HEADER_UPLOAD_ID, "upload-1");
+        if (mStuck) {
+            return response.setHeader(OkChunkedUpload.HEADER_UPLOAD_OFFSET, 0);
+        }
+        String range = request.getHeader(OkChunkedUpload.HEADER_CONTENT_RANGE);
+        long start = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+        if (start == mStored.size()) {
+            mStored.write(request.getBody(), request.getBodySize());
+        }
+        return response.setHeader(OkChunkedUpload.HEADER_UPLOAD_OFFSET, mStored.size());
+    }
+
+    private Result upload(int maxChunkRetries) throws InterruptedException {
+        final Result result = new Result();
+        new OkChunkedUpload(mQueue, mServer.getUrl("/upload").toString(), mFile, mStateFile)
+                .chunkSize(CHUNK)
+                .maxChunkRetries(maxChunkRetries)
+                .listener(result)
+                .start();
+        assertTrue("upload did not finish", result.mDone.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    @Test
+    public void uploadsAllChunksAndRetriesAFailedOne() throws Exception {
+        mFailFrom = 2;
+        mFailCount = 1;
+
+        Result result = upload(1);
+
+        assertNull(result.mError);
+        assertNotNull(result.mResponse);
+        assertArrayEquals(mBody, mStored.readByteArray());
+        assertEquals((SIZE + CHUNK - 1) / CHUNK + 1, mServer.getRequestCount());
+        assertFalse(mStateFile.exists());
+    }
+
+    @Test
+    public void newUploadResumesFromStoredState() throws Exception {
+        mFailFrom = 3;
+        mFailCount = 1000;
+        Result failed = upload(0);
+        assertNotNull(failed.mError);
+        assertTrue(mStateFile.exists());
+        assertEquals(3L * CHUNK, mStored.size());
+
+        mFailFrom = -1;
+        for (int i = 0; i < 4; i++) {
+            mServer.takeRequest();
+        }
+        Result resumed = upload(0);
+
+        assertNull(resumed.mError);
+        RecordedRequest first = mServer.takeRequest();
+        assertTrue(first.getHeader(OkChunkedUpload.HEADER_CONTENT_RANGE).startsWith("bytes " + 3 * CHUNK + "-"));
+        assertEquals("upload-1", first.getHeader(OkChunkedUpload.HEADER_UPLOAD_ID));
+        assertArrayEquals(mBody, mStored.readByteArray());
+    }
+
+    @Test
+    public void failsWhenServerOffsetDoesNotAdvance() throws Exception {
+        mStuck = true;
+
+        Result result = upload(2);
+
+        assertNotNull(result.mError);
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    private static class Result implements OkChunkedUpload.Listener {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile NetworkResponse mResponse;
+        volatile VolleyError mError;
+
+        @Override
+        public void onProgress(long uploaded, long total, long bytesPerSecond) {
+        }
+
+        @Override
+        public void onComplete(NetworkResponse response) {
+            mResponse = response;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(VolleyError error) {
+            mError = error;
+            mDone.countDown();
+        }
+    }
+}
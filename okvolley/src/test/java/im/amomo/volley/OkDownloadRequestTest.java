@@ -0,0 +1,165 @@
+package im.amomo.volley;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.VolleyError;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads against a server which drops the connection halfway through the first body.
+ */
+public class OkDownloadRequestTest {
+
+    private static final int SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final MockWebServer mServer = new MockWebServer();
+
+    private final byte[] mBody = new byte[SIZE];
+
+    private volatile String mEtag = "\"v1\"";
+
+    private volatile boolean mDropFirst = true;
+
+    private OkNetwork mNetwork;
+
+    private File mTarget;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(mBody);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond(request);
+            }
+        });
+        mServer.start();
+        mNetwork = new OkNetwork(new OkHttpStack());
+        mTarget = new File(mFolder.getRoot(), "download.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private MockResponse respond(RecordedRequest request) {
+        String range = request.getHeader(OkDownloadRequest.HEADER_RANGE);
+        String ifRange = request.getHeader(OkDownloadRequest.HEADER_IF_RANGE);
+        if (range != null && mEtag.equals(ifRange)) {
+            int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            return new MockResponse()
+                    .setResponseCode(206)
+                    .setHeader("ETag", mEtag)
+                    .setHeader("Content-Range", "bytes " + offset + "-" + (SIZE - 1) + "/" + SIZE)
+                    .setBody(new Buffer().write(Arrays.copyOfRange(mBody, offset, SIZE)));
+        }
+        if (mDropFirst) {
+            mDropFirst = false;
+            // announce the whole body, send half of it and close the connection
+            return new MockResponse()
+                    .setHeader("ETag", mEtag)
+                    .setBody(new Buffer().write(Arrays.copyOf(mBody, SIZE / 2)))
+                    .setHeader("Content-Length", SIZE)
+                    .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+        }
+        return new MockResponse().setHeader("ETag", mEtag).setBody(new Buffer().write(mBody));
+    }
+
+    private OkDownloadRequest newRequest(int retries) {
+        OkDownloadRequest request = new OkDownloadRequest(mServer.getUrl("/file").toString(), mTarget, null, null);
+        request.setRetryPolicy(new DefaultRetryPolicy(10000, retries, 1f));
+        return request;
+    }
+
+    @Test
+    public void retryResumesWhereTheDroppedAttemptStopped() throws Exception {
+        mNetwork.performRequest(newRequest(1));
+
+        assertArrayEquals(mBody, readFile(mTarget));
+        assertEquals(2, mServer.getRequestCount());
+        assertNull(mServer.takeRequest().getHeader(OkDownloadRequest.HEADER_RANGE));
+        RecordedRequest resumed = mServer.takeRequest();
+        assertTrue(resumed.getHeader(OkDownloadRequest.HEADER_RANGE).startsWith("bytes="));
+        assertEquals("\"v1\"", resumed.getHeader(OkDownloadRequest.HEADER_IF_RANGE));
+        assertFalse(new File(mTarget.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void newRequestResumesAfterRestart() throws Exception {
+        OkDownloadRequest first = newRequest(0);
+        try {
+            mNetwork.performRequest(first);
+            fail("dropped connection did not fail the request");
+        } catch (VolleyError expected) {
+            // the part file is kept
+        }
+        long downloaded = first.getDownloadedBytes();
+        assertTrue(downloaded > 0 && downloaded < SIZE);
+
+        mNetwork.performRequest(newRequest(0));
+
+        assertArrayEquals(mBody, readFile(mTarget));
+        mServer.takeRequest();
+        assertEquals("bytes=" + downloaded + "-", mServer.takeRequest().getHeader(OkDownloadRequest.HEADER_RANGE));
+    }
+
+    @Test
+    public void changedResourceStartsOver() throws Exception {
+        try {
+            mNetwork.performRequest(newRequest(0));
+            fail("dropped connection did not fail the request");
+        } catch (VolleyError expected) {
+            // the part file is kept
+        }
+        mEtag = "\"v2\"";
+        new Random(7).nextBytes(mBody);
+
+        mNetwork.performRequest(newRequest(0));
+
+        assertArrayEquals(mBody, readFile(mTarget));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
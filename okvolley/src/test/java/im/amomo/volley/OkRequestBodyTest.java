@@ -0,0 +1,104 @@
+package im.amomo.volley;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * POSTs against a server which rejects the first attempt, so the body is sent twice.
+ */
+public class OkRequestBodyTest {
+
+    private final MockWebServer mServer = new MockWebServer();
+
+    private int mRequests;
+
+    private OkNetwork mNetwork;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond();
+            }
+        });
+        mServer.start();
+        mNetwork = new OkNetwork(new OkHttpStack());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private synchronized MockResponse respond() {
+        if (mRequests++ == 0) {
+            // rejected, OkNetwork retries auth failures within the retry policy
+            return new MockResponse().setResponseCode(401);
+        }
+        return new MockResponse().setBody("ok");
+    }
+
+    private PostRequest post() {
+        PostRequest request = new PostRequest(mServer.getUrl("/post").toString());
+        request.setRetryPolicy(new DefaultRetryPolicy(2500, 1, 1f));
+        return request;
+    }
+
+    @Test
+    public void retriedPostGetsIdenticalBytes() throws Exception {
+        PostRequest request = post();
+        request.form("name", "value").form("other", "second value");
+
+        mNetwork.performRequest(request);
+
+        assertEquals(2, mServer.getRequestCount());
+        byte[] first = mServer.takeRequest().getBody().readByteArray();
+        byte[] retried = mServer.takeRequest().getBody().readByteArray();
+        assertEquals("name=value&other=second+value", new String(first, OkRequest.CHARSET_UTF8));
+        assertArrayEquals(first, retried);
+    }
+
+    @Test
+    public void retriedFrozenPostGetsIdenticalBytes() throws Exception {
+        byte[] body = new byte[64 * 1024];
+        new Random(42).nextBytes(body);
+        PostRequest request = post();
+        request.send(body);
+        request.freeze(null);
+
+        mNetwork.performRequest(request);
+
+        assertEquals(2, mServer.getRequestCount());
+        assertArrayEquals(body, mServer.takeRequest().getBody().readByteArray());
+        assertArrayEquals(body, mServer.takeRequest().getBody().readByteArray());
+        assertTrue(request.getBody() == request.getBody());
+    }
+
+    private static class PostRequest extends OkRequest<String> {
+        PostRequest(String url) {
+            super(Method.POST, url, null);
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(new String(response.data), null);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package im.amomo.volley;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.squareup.okhttp.RequestBody;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Progress reporting costs nothing without a listener: the request body is sent as is.
+ * The overhead with a listener is measured by the ProgressOverheadBenchmark on a device.
+ */
+public class ProgressRequestBodyTest {
+
+    private final byte[] mBody = new byte[64 * 1024];
+
+    private OkRequest<byte[]> post() throws IOException {
+        new Random(42).nextBytes(mBody);
+        OkRequest<byte[]> request = new OkRequest<byte[]>(Request.Method.POST, "http://localhost/", null) {
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                return Response.success(response.data, null);
+            }
+        };
+        request.send(mBody);
+        return request;
+    }
+
+    @Test
+    public void bodyIsNotWrappedWithoutListener() throws Exception {
+        OkRequest<byte[]> request = post();
+
+        RequestBody body = OkHttpStack.createRequestBody(request);
+
+        assertFalse(body instanceof ProgressRequestBody);
+        assertNull(request.getDownloadProgress());
+    }
+
+    @Test
+    public void bodyIsWrappedWithListener() throws Exception {
+        OkRequest<byte[]> request = post();
+        request.setUploadProgressListener(new ProgressListener() {
+            @Override
+            public void onProgress(long bytes, long total) {
+            }
+        });
+
+        RequestBody body = OkHttpStack.createRequestBody(request);
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assertTrue(body instanceof ProgressRequestBody);
+        assertArrayEquals(mBody, sink.readByteArray());
+    }
+}
@@ -0,0 +1,181 @@
+package im.amomo.volley;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.squareup.okhttp.CertificatePinner;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Collections;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * TLS connections to a server with a self-signed certificate, one connection per request.
+ * <p/>
+ * The socket factory is replaced by an in-process client context, so this covers the
+ * handshake counters and pinning but not sessions persisted by the platform
+ * {@link android.net.SSLSessionCache}, which only exists on a device.
+ */
+public class TlsSessionCacheTest {
+
+    /**
+     * PKCS12 key store with a self-signed certificate for localhost, password "password"
+     */
+    private static final String KEY_STORE =
+            "MIIJkQIBAzCCCUoGCSqGSIb3DQEHAaCCCTsEggk3MIIJMzCCBW8GCSqGSIb3DQEHAaCCBWAEggVcMIIFWDCCBVQGCyqGSIb3DQEM"
+            + "CgECoIIE+zCCBPcwKQYKKoZIhvcNAQwBAzAbBBSR+EbyhN4yvA/SZ/bWW33zbJtj8gIDAMNQBIIEyNiIwWsWKy3d4/aMfAhNXooX"
+            + "HMn6ct/So/rWShSmgHDhuXVU9uN0iLzwLVP5ffiR7WE4cMlXLARY1Xkei7xtvS/1hcfGthx5eaA4Ye0DqSMDC6TmJv1ab/JcwNdg"
+            + "cfjgvhMIHdAFX9HxHxDzo8geyCsdbC7V344MdhImj41N1uOl35EoqgLeGbk7hp4yb81AbmaFk6+psy7xmKsZ70aJhyonkEHT/4I5"
+            + "xQK3jK5tewvSek1MAHDdIHAD2KjCIOY1+Wzh16sJi8FY77qoqMb2Bpinli1PwVBHZCkqAdVFYQ8PB/E9z97PRxBpyeHYfms0orcw"
+            + "f4mmOb8l9CISobCy7AJ1Jh2zn2mhQsGBLzXF5rSzokA+pOYLA/BHXyCq9hflgMo6nSjjrSKn6In6xYcdCGLfoj1l6i8YuJqcNQHi"
+            + "zf6HNNaozfZwaxwMcsJrcYzo5JNMOpjg6mmZCOH0kwBEooBglAk6vcPPGGqtswLD3L2yU52/t5C1066RJhcQvkihWbfFbQh/dftW"
+            + "rl47hQhOVCepYCvMx4VQoDsBHWSwFeJlKckZI80jKxh439BfmWhLZJy4M0X8yeeG4XAEK1mGdLgG0ng2FGkI7jBhBa+l8a+InK3w"
+            + "rw7MidImqdf+0dBNhieC0k7BwGQkdaVFvV6JoH9khnd4W5bhVjbq+dCiQ8qBl7JREOIVZcZ+g+o/f7MjEXvI5Udf/9o97wzsOGQ+"
+            + "nfjwBE4bvzd5BAuhNMdg332D+PQ6bMInHI4i1lTW2pJaXJqxNUCrKSQPACMq4Vv0GYCnK9ZTsPl4aU6oX90LEzlSe9jy4ETjbyPe"
+            + "xU32N7Wd1QrcneG3zmRBA0LaBsX4VM11oiT1BoHIIF/eLINhkZfnL2kuHeSnCzbgqFfpJieYUfYy8MeC1qdaQp9kWS+F/rJMGl+P"
+            + "7pn+///Z0Uo5LwhQVLuG9SCVHyVtateE9F73cdqNCIfSCbo9GRmfQ25GGPM+l2zpQMhqhwj5iZewcKy0TpWJw5EwGsNbIRULGJin"
+            + "Nxi+rM6DRUM97QVXBtdqxd+o1FNhCG8ZvmOvUXDcbiza9rExPmwhTf7T5SVnyVJhWRelNHHtfvziUQf32cSvUVP1WXNj07jH1CX0"
+            + "giSkNntThFGKw6Y70EyCy3+3w0FGn5efwStvtDk9ypOuEBTUzvcGfll5rTngg1zxKcYD2logxYtjMF7yo/AlXKMWhjTzB/XlAhEd"
+            + "JW205TK30UJBBy8GqfOBQRvh/BH1rAyTwMNklKs8x4eGvmiUjr7WIN/Kewsn8j9SfEjlRzzobHh68MgFxduujnVJT7uxlP5++LXT"
+            + "EBEOGRgrEVjRW5JeYWrkXYC18xyxq7dDYoOVUvZ5UrFuIDIjlpizbfOdTAQVkauiiqhu6tgk6ufFbB0nSjS0xdmmFvhZbYfDj04O"
+            + "dYmFlLyXEKUyo+BRVBNu95P5Z6G6pObYyrJMHJMc7eXobOHI861CXEE0o/dXccjUFL9AxvKS78yvG4/rsja2wYeQ3wv05udeK3fW"
+            + "3yjuQVl429wtMlCOthWmaOFPk+kfxvC5lWtNP+iJtGaxDGt86+30BlfqLexkGBTgZTWeQAm+XOcnHrEM3CB3QqAVes83JfAKZ5oi"
+            + "IBpd9RLUUTFGMCEGCSqGSIb3DQEJFDEUHhIAbABvAGMAYQBsAGgAbwBzAHQwIQYJKoZIhvcNAQkVMRQEElRpbWUgMTc5MjQwNTc1"
+            + "NTQwNjCCA7wGCSqGSIb3DQEHBqCCA60wggOpAgEAMIIDogYJKoZIhvcNAQcBMCkGCiqGSIb3DQEMAQYwGwQUZy7a3TzUUB0dxCJy"
+            + "UXaUcEhfOiUCAwDDUICCA2jKOs+m7ZLQn2WUqSQQ5HzVYe/TujUokwx6A8Zp2vLR1swwlRleZrsmoyzYe/0JMRLgTm9SHbjKxMuD"
+            + "7WY2W9AWk40UQ8s0K1rQFrKv9CI26VEnEEbhjEBk7XwusJu9ch35ybxFwgio5ZadCpWKk2dtXVdoQZsNLdu7woMATHfoY0GG/lU0"
+            + "5MLvYZNdUBDlYE/CFtJ9xmPEdKubKHF5KpjZPcMKSP9+A/fj3ivw2FmMEfuZINqXY3xMDBNRuim1VRoxXAe7SfWs1t4oBtdrBEgV"
+            + "nGVuxfgvjLk19HKZ6xxVbVvZ8W0YUV8uVvoWWqhSGYFJfBVC/OzdZ3cULw5sROktOiixyUlpBcRviII09DaalimjoEg5pHpX1n9V"
+            + "Rzo9vXiszFitcliqLPYCOBX9jExdYIKcVmX04Nsa9OtxJf8K2QPXVqKf4urewguHldobKfy/jSrhvro+JYVnmRJO55wjUtlUVcn1"
+            + "l7+YRRYxPk3aRVkDbEhcssAfhFu6GcZMxrdMoSmzkuiC0QZMdhu6382v3rQ44hwIYHaLRdDBnl8gl4zH+x05llMzrW39TvCI/dCw"
+            + "jwD50AcjhVVuB/C9xxk0qiNZ7F4MxBaKxWKbGruwKbGKM0I4N7JZTywovdZMwv4PK0kMy9M0qaa24+6fj+452owKzg2hkP29w2T5"
+            + "lZdz38wKW1iGe3lkHb5/Hb43Pp1pfrYd39bhR+HxkoADwfT3D5ptqJsltk4MUdu/JnOOO+XGoUZ5vvMBlS7O6DCYQmOjeZTg1ZT5"
+            + "wsIVNXdSDdZgalT+884BNKOmpwinUpAG1pnnty6I2BFqz/HGPGCqde71Huilpr1oSG3Ex9F8uTCB7wvsRsgabalCm3bhqbYFfols"
+            + "aNBHCUgRayc1D00bCYmXs4NUJq2JjUGpwLn6rW/MJz1PfrVyA9cW8YJWXJE4UdaUGQQg6S5b3hdplNx0wM6QHB/JXz3ggrlOxJpt"
+            + "eZcKGTg1o/fi+PGnwYHrb5GimMit9hIsiI3Swg17z2Te+87dK8NESHvpXS+7cTx37eIg8PARRkq7GqFZzht3/jsLXTxKQYiKUcWV"
+            + "C/M35Y1Ewhf72LbxcFFGLis+c/Z7BLSo0IOits+34iNH8arWqshBXdvBmavCl4fItSW6PnJpTE6mjAMMcL2LKTA+MCEwCQYFKw4D"
+            + "AhoFAAQU8PSlw5xZXADZwdVVXpE2yyHnWY8EFHE9k5XzdeypPk3CtEWt9ZgAdFtKAgMBhqA=";
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private static final String HOST = "localhost";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final MockWebServer mServer = new MockWebServer();
+
+    private Certificate mCertificate;
+
+    private OkHttpStack mStack;
+
+    private TlsSessionCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new ByteArrayInputStream(ByteString.decodeBase64(KEY_STORE).toByteArray()), PASSWORD);
+        mCertificate = keyStore.getCertificate(HOST);
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        mServer.useHttps(serverContext.getSocketFactory(), false);
+        mServer.start();
+
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        // OkHttp 2.4 speaks up to TLS 1.2, where a resumed session keeps its id
+        final SSLContext clientContext = SSLContext.getInstance("TLSv1.2");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+        mCache = new TlsSessionCache(mFolder.newFolder(), 10, 24 * 60 * 60 * 1000) {
+            @Override
+            public SSLSocketFactory getSocketFactory(boolean trustAllCerts) {
+                // the platform session cache only exists on a device, the client context
+                // resumes sessions in this process
+                return clientContext.getSocketFactory();
+            }
+        };
+        mStack = new OkHttpStack();
+        mStack.setTlsSessionCache(mCache);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private void get() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("ok").setHeader("Connection", "close"));
+        com.squareup.okhttp.Response response = mStack.performRequest(
+                new GetRequest(mServer.getUrl("/").toString()), Collections.<String, String>emptyMap());
+        assertEquals("ok", response.body().string());
+    }
+
+    @Test
+    public void countsResumedHandshakes() throws Exception {
+        get();
+        get();
+        get();
+
+        assertEquals(3, mCache.getHandshakeCount());
+        assertEquals(2, mCache.getResumedCount());
+        assertEquals(2f / 3, mCache.getResumptionRate(), 0.001f);
+    }
+
+    @Test
+    public void checksPinsOnResumedSessions() throws Exception {
+        get();
+
+        mStack.pinnCert(new CertificatePinner.Builder()
+                .add(HOST, CertificatePinner.pin(mCertificate))
+                .build());
+        get();
+        assertEquals(1, mCache.getResumedCount());
+
+        mStack.pinnCert(new CertificatePinner.Builder()
+                .add(HOST, "sha1/" + ByteString.of(new byte[20]).base64())
+                .build());
+        try {
+            get();
+            fail("pin mismatch on a resumed session was not detected");
+        } catch (SSLPeerUnverifiedException expected) {
+            // the session could be resumed, the pins were still checked
+        }
+        // the rejected connection never reaches the interceptor
+        assertEquals(2, mCache.getHandshakeCount());
+    }
+
+    private static class GetRequest extends OkRequest<String> {
+        GetRequest(String url) {
+            super(Request.Method.GET, url, null);
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(new String(response.data), null);
+        }
+    }
+}